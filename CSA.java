@@ -14,11 +14,72 @@
 #          for the tree T (30) (around two billion nodes) in under five minutes (with 16GB allocated for Java’s heap memory).
 */
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 
 
 //-------------------------------------------Color-Spliting-Algorithm (CSA) Main class----------------------------------------
@@ -26,12 +87,34 @@ public class CSA {
 
     public static void main(String[] args) throws IOException {
 
+        //With command-line options, run the non-interactive batch mode (see BatchRunner)
+        if (args.length > 0) {
+            BatchRunner.main(args);
+            return;
+        }
+
         ColorSplittingAlgorithm CSA = new ColorSplittingAlgorithm();
+        ParallelColorSplitting parallelCSA = new ParallelColorSplitting();
+        PrimitiveColorSplitting primitiveCSA = new PrimitiveColorSplitting();
+        TemplateColorSplitting templateCSA = new TemplateColorSplitting();
+        SortedColorSplitting sortedCSA = new SortedColorSplitting();
 
+        //"SEQUENTIAL"/"PARALLEL"/"PRIMITIVE"/"TEMPLATE"/"SORTED" engine used to run the Color-Splitting Algorithm
+        String ENGINE = "SEQUENTIAL";
         //"ON"/"OFF" test CSA output functions
         String CHECK = "OFF";
         //"ON"/"OFF" to export CSA results
         String EXP = "OFF";
+        //"TXT"/"BIN" format of the exported file (see Data.SaveTreeTXT and Data.SaveTreeBIN)
+        String FORMAT = "TXT";
+        //"ON"/"OFF" to count nodes per depth, FeasibleSplit calls and phase times of the SEQUENTIAL engine, print the progress
+        //every 10 seconds and publish the counters over JMX (see CSAMetrics)
+        String METRICS = "OFF";
+        CSAMetrics metrics = new CSAMetrics();
+        if (METRICS.contains("ON")) {
+            CSA.metrics = metrics;
+            metrics.register();
+        }
         //You should change this PATH to save your output when EXP = "ON"
         Data export = new Data(EXP, "/Color-Spliting-Algorithm-CSA-main/Database/test");
 
@@ -65,7 +148,10 @@ public class CSA {
             } while (!ck);
 
             //Quit
-            if (option.charAt(0) == 'Q' || option.charAt(0) == 'q') break;
+            if (option.charAt(0) == 'Q' || option.charAt(0) == 'q') {
+                parallelCSA.shutdown();
+                break;
+            }
 
             //A. * Automatic Balanced Ancestral Coloring *
             //You need only input the tree's height, which is greater than or equal to 2.
@@ -100,14 +186,20 @@ public class CSA {
             c.forEach(x -> vectorC.add(x.getSize()));
 
             //Start Color-Splitting Algorithm ************************** START *************************
+            if (METRICS.contains("ON")) metrics.startReporting(10000);
             long startTime = System.nanoTime();
 
             //Color-Splitting Algorithm
-            NodesSets = CSA.ColorSplitting(h, c);
+            if (ENGINE.contains("PARALLEL")) NodesSets = parallelCSA.ColorSplitting(h, c);
+            else if (ENGINE.contains("PRIMITIVE")) NodesSets = primitiveCSA.ColorSplitting(h, c);
+            else if (ENGINE.contains("TEMPLATE")) NodesSets = templateCSA.ColorSplitting(h, c);
+            else if (ENGINE.contains("SORTED")) NodesSets = sortedCSA.ColorSplitting(h, c);
+            else NodesSets = CSA.ColorSplitting(h, c);
 
             //End Color-Splitting Algorithm ***************************** END **************************
             long endTime = System.nanoTime();
             long timeElapsed = (endTime - startTime) / 1000000;
+            metrics.stopReporting();
 
             //Print input including the height of a tree and a color sequence c = [c1,...,ch]
             System.out.println("*** Input:");
@@ -117,6 +209,10 @@ public class CSA {
             //Print Output
             System.out.println("*** Output:");
             System.out.println("    Execution time in milliseconds: " + timeElapsed);
+            if (ENGINE.contains("TEMPLATE")) {
+                System.out.println("    Template hit rate: " + templateCSA.getHits() + "/" + templateCSA.getLookups()
+                        + " = " + String.format("%.4f", templateCSA.getHitRate()));
+            }
 
             //Uncomment/Comment this block below if you want/not to print Output sets in Terminal.
             Arrays.stream(NodesSets).forEach(s -> {
@@ -125,8 +221,14 @@ public class CSA {
                 System.out.println();
             });
 
-            //Export Output on txt files.
-            export.SaveTreeTXT(NodesSets);
+            //Export Output on txt or binary files.
+            long exportTime = System.nanoTime();
+            if (FORMAT.contains("BIN")) export.SaveTreeBIN(NodesSets);
+            else export.SaveTreeTXT(NodesSets);
+            if (METRICS.contains("ON")) {
+                metrics.phase(CSAMetrics.EXPORT, System.nanoTime() - exportTime);
+                System.out.print(metrics);
+            }
 
             //Turn CHECK to "ON" if you want to test CSA Outputs
             testCSA(CHECK, test, NodesSets, h);
@@ -138,11 +240,14 @@ public class CSA {
 
     public static void testCSA(String OnOff, CheckCSA test, NodesSet[] NodesSets, byte h) {
         if(OnOff.contains("ON")) {
+            //The node ID and relationship checks run in linear time (see LinearCheckCSA)
+            LinearCheckCSA check = new LinearCheckCSA();
+
             //Check if:
             // 1. All nodes in the tree (except root) appear exactly once across S
             // 2. All node IDs in the tree (except root) are inside the range of IDs (from 2 to (2^(h+1) - 2))
             // 3. Total number of nodes in the tree is the same as total nodes in the perfect binary tree.
-            if(test.IsValidAllNodeID(NodesSets, h)) System.out.println("IsValidAllNodeID: PASSED!");
+            if(check.IsValidAllNodeID(NodesSets, h)) System.out.println("IsValidAllNodeID: PASSED!");
             else System.out.println("IsValidAllNodeID: FAILED!");
 
             //Check if sets have valid sizes
@@ -150,7 +255,7 @@ public class CSA {
             else System.out.println("IsBalancedSets: FAILED!");
 
             //Check if no ancestor-descendant pair appears in any set
-            if(test.IsRelationship(NodesSets)) System.out.println("IsRelationship: PASSED!");
+            if(check.IsRelationship(NodesSets, h)) System.out.println("IsRelationship: PASSED!");
             else System.out.println("IsRelationship: FAILED!");
         }
     }
@@ -159,6 +264,7 @@ public class CSA {
         NodesSet[] NodesSets;
         List<NumColor> c = new ArrayList<>();
         ArrayList<Integer> vectorC = new ArrayList<>();
+        LinearCheckCSA check = new LinearCheckCSA();
 
         for (ArrayList<NumColor> numColors : F) {
             c.addAll(numColors);
@@ -173,8 +279,9 @@ public class CSA {
                 1. All nodes in the tree (except root) appear exactly once across S
                 2. All node IDs in the tree (except root) are inside the range of IDs (from 2 to (2^(h+1) - 2))
                 3. Total number of nodes in the tree is the same as total nodes in the perfect binary tree.
-                4. No ancestor-descendant pair appears in any set*/
-            if(test.IsValidAllNodeID(NodesSets, h)&&test.IsRelationship(NodesSets)) {
+                4. Every set has the size given by c
+                5. No ancestor-descendant pair appears in any set*/
+            if(check.Validate(NodesSets, h, LongColorSplitting.sizes(c))) {
                 System.out.println("ALL PASSED!");
             }
             else {
@@ -240,6 +347,8 @@ class ColorSplittingAlgorithm {
 
     NodesSet[] NodesSets;
     HashMap<List<NumColor>, List<NumColor>> C = new HashMap<>();
+    //Optional counters of the run (see CSAMetrics); null means no instrumentation
+    CSAMetrics metrics;
     char[] color = {'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q'
             , 'R','S', 'T', 'U', 'V','W', 'X', 'Y', 'Z','0', '1', '2', '3', '4', '5', '6', '7','8', '9'};
 
@@ -254,7 +363,9 @@ class ColorSplittingAlgorithm {
             NodesSets[q] = new NodesSet(c.get(q).getColor(), size);
         }
 
+        if (metrics != null) metrics.start(h);
         ColorSplittingRecursive(R, h, c);
+        if (metrics != null) metrics.finish();
 
         return NodesSets;
     }
@@ -276,6 +387,9 @@ class ColorSplittingAlgorithm {
         if (h > 0) {
             A = 2 * R; //left child of 𝑅
             B = 2 * R + 1; //right child of 𝑅
+            //only one call in CSAMetrics.SAMPLE is timed, which keeps the cost of System.nanoTime off most nodes
+            boolean timed = metrics != null && metrics.sample();
+            long time = timed ? System.nanoTime() : 0;
 
             //Assign Color 1 to both 𝐴 and 𝐵; And add A and B to the same set.
             if (c.get(0).getSize() == 2) {
@@ -297,6 +411,12 @@ class ColorSplittingAlgorithm {
                     }
                 }
             }
+            if (metrics != null) metrics.nodes(31 - Integer.numberOfLeadingZeros(A), 2);
+            if (timed) {
+                long now = System.nanoTime();
+                metrics.sampled(CSAMetrics.APPEND, now - time);
+                time = now;
+            }
 
             //Split the feasible sequence c to a feasible sequence a and a feasible sequence b
             if (h > 1) {
@@ -305,6 +425,8 @@ class ColorSplittingAlgorithm {
                     a.addAll(n);
                     b.addAll(m);
                 });
+                if (metrics != null) metrics.split();
+                if (timed) metrics.sampled(CSAMetrics.SPLIT, System.nanoTime() - time);
 
                 Collections.sort(a);
                 ColorSplittingRecursive(A, (byte) (h - 1), a);
@@ -319,10 +441,11 @@ class ColorSplittingAlgorithm {
     Note that the splitting rule (see FeasibleSplit(ℎ, 𝑐)) ensures that if Color 𝑖 is used for a node then it will no longer be used in the subtree rooted at that node,
     hence guaranteeing the Ancestral Property.*/
     //key = a; value = b which are two (ℎ − 1)-feasible of two subtrees following "Procedure FeasibleSplit(ℎ, 𝑐)"
+    //The result map is local to each call so that FeasibleSplit can be shared by several threads (see ParallelColorSplitting)
     public HashMap<List<NumColor>, List<NumColor>> FeasibleSplit(byte h, List<NumColor> c) {
         List<NumColor> a = new ArrayList<>(h - 1);
         List<NumColor> b = new ArrayList<>(h - 1);
-        C.clear();
+        HashMap<List<NumColor>, List<NumColor>> C = new HashMap<>();
 
         if (h == 2) {
             byte i = 1; //Position 2
@@ -421,19 +544,20 @@ class ColorSplittingAlgorithm {
     }
 
     //Corollary 2 (Balanced Color sequence) return 𝑐 = [𝑐1, 𝑐2, . . . , 𝑐ℎ]
+    //The number of nodes 2^(h+1) - 2 is computed exactly in long arithmetic, which stays exact beyond T(30)
     public List<NumColor> balancedColorSequence(byte h) {
         int cValue;
-        byte u = (byte) ((Math.pow(2, h + 1) - 2) % h);
+        long n = (1L << (h + 1)) - 2;
+        byte u = (byte) (n % h);
         List<NumColor> c = new ArrayList<>(h);
 
         for (byte i = 0; i < h; i++) {
-            double a = (Math.pow(2, h + 1) - 2) / h;
             if (i < (h - u)) {
-                cValue = (int) Math.floor(a);
+                cValue = (int) (n / h);
                 c.add(new NumColor(color[i], cValue));
             }
             else {
-                cValue = (int) Math.ceil(a);
+                cValue = (int) (n / h + 1);
                 c.add(new NumColor(color[i], cValue));
             }
         }
@@ -446,17 +570,17 @@ class ColorSplittingAlgorithm {
     //the following two conditions: (C1) and (C2)
     public boolean isFeasible(byte h, List<NumColor> c) {
         for (byte m = h; m > 0; m--) {
-            int sum;
+            long sum;
             sum = getTotalColorSize(m, c);
             //check (C2)
-            if (m == h && sum != (int) (Math.pow(2, m + 1) - 2)) {
+            if (m == h && sum != (1L << (m + 1)) - 2) {
                 System.out.println("\n" + " ***** WARNING! *****");
                 System.out.println("The color sequence is NOT feasible");
                 System.out.println("Conflict with C2: The total size of 𝑐 is equal to the number of nodes in 𝑇 (ℎ)");
                 return false;
             }
             //check (C1)
-            if (sum < (int) Math.pow(2, m + 1) - 2) {
+            if (sum < (1L << (m + 1)) - 2) {
                 System.out.println("\n" + " ***** WARNING! *****");
                 System.out.println("The color sequence is NOT feasible");
                 System.out.println("Conflict with C1: Colors 1, 2, . . . , ℓ can be used to color all nodes in Layers 1, 2, . . . , ℓ of the perfect binary tree 𝑇 (ℎ)");
@@ -546,9 +670,9 @@ class ColorSplittingAlgorithm {
     }
 
     //Sum all color values
-    public int getTotalColorSize(byte m, List<NumColor> c) {
+    public long getTotalColorSize(byte m, List<NumColor> c) {
         if (0 < m && m <= c.size()) {
-            int sum = 0;
+            long sum = 0;
             for (byte i = 0; i < m; i++) {
                 sum += c.get(i).getSize();
             }
@@ -562,219 +686,6429 @@ class ColorSplittingAlgorithm {
 }
 
 
-//-----------------------------------------Set of Nodes have the same color class------------------------------------------------------------
-/* An example of a perfect binary tree with h = 2
-                       1
-                    /    \
-                  2       3
-                /  \    /  \
-               4   5   6    7
-*/
-//Each set will contain all node with the same color
-class NodesSet {
+//-----------------------------------------CSA Metrics class--------------------------------------------------------------------
+//Counters of a Color-Splitting run: nodes colored per depth, FeasibleSplit calls and the time of the split, append and export
+//phases (split and append are sampled, see SAMPLE). The engine adds to LongAdders, so the counters can be read at any time (snapshot, progress thread, JMX) without
+//locking, and several threads may add to them. Progress and ETA assume that nodes are colored at a steady rate, which holds for
+//the depth-first recursion.
+//The metrics are published over JMX as the MBean "CSA:type=Metrics" with one read-only attribute per snapshot entry, and to
+//Flight Recorder (JDK 8u262 and later) as the events CSA.Run (one per run, start to finish) and CSA.Phase (the total of the split
+//and append phases at the end of a run, and every export), e.g. java -XX:StartFlightRecording=filename=csa.jfr CSA.
+class CSAMetrics implements DynamicMBean {
 
-    private int count = 0;
-    private final char colorSet;
-    //Array of node IDs (R)
-    private final int [] addNodes;
+    static final int SPLIT = 0, APPEND = 1, EXPORT = 2;
+    static final String[] PHASES = {"split", "append", "export"};
+    static final String OBJECT_NAME = "CSA:type=Metrics";
+    //The split and append phases are timed on one recursive call in SAMPLE and scaled up
+    static final int SAMPLE = 64;
 
-    public NodesSet(char colorSet, int size) {
-        this.colorSet = colorSet;
-        addNodes = new int [size];
+    private volatile int h;
+    private volatile long startNanos;
+    private volatile long endNanos;
+    private volatile LongAdder[] nodesPerDepth = new LongAdder[0];
+    private final LongAdder nodes = new LongAdder();
+    private final LongAdder splits = new LongAdder();
+    private final LongAdder[] phaseNanos = {new LongAdder(), new LongAdder(), new LongAdder()};
+    //calls seen by sample(); a lost update between threads only shifts the sample
+    private int calls;
+    private Thread reporter;
+    private volatile CSARunEvent run = new CSARunEvent();
+
+    //Resets the counters for a run on T(h)
+    public void start(int h) {
+        LongAdder[] depth = new LongAdder[h + 1];
+        for (int d = 0; d <= h; d++) {
+            depth[d] = new LongAdder();
+        }
+        nodes.reset();
+        splits.reset();
+        for (LongAdder p : phaseNanos) {
+            p.reset();
+        }
+        nodesPerDepth = depth;
+        this.h = h;
+        endNanos = 0;
+        run = new CSARunEvent();
+        run.begin();
+        startNanos = System.nanoTime();
     }
 
-    public void addNode(int root) {
-        //array start from 0, whereas node colored start from 2
-        addNodes[count] = root;
-        count++;
+    //The run is complete; the elapsed time stops here
+    public void finish() {
+        endNanos = System.nanoTime();
+        CSARunEvent event = run;
+        event.end();
+        if (event.shouldCommit()) {
+            event.height = h;
+            event.nodes = getNodes();
+            event.feasibleSplitCalls = getSplits();
+            event.commit();
+        }
+        phaseEvent(SPLIT, phaseNanos[SPLIT].sum());
+        phaseEvent(APPEND, phaseNanos[APPEND].sum());
     }
 
-    public int [] getAddNodes() {
-        return addNodes;
+    //n nodes of the given depth (the children of the root have depth 1) were added to the color classes
+    public void nodes(int depth, int n) {
+        nodesPerDepth[depth].add(n);
+        nodes.add(n);
     }
 
-    public char getColorSet() {
-        return colorSet;
+    public void split() {
+        splits.increment();
     }
 
-    public int getSize() {
-        return count;
+    //true for one call in SAMPLE; the caller then times its phases and reports them with sampled
+    public boolean sample() {
+        return (++calls & (SAMPLE - 1)) == 0;
+    }
+
+    public void sampled(int phase, long nanos) {
+        phaseNanos[phase].add(nanos * SAMPLE);
+    }
+
+    public void phase(int phase, long nanos) {
+        phaseNanos[phase].add(nanos);
+        phaseEvent(phase, nanos);
+    }
+
+    private void phaseEvent(int phase, long nanos) {
+        CSAPhaseEvent event = new CSAPhaseEvent();
+        if (event.shouldCommit()) {
+            event.height = h;
+            event.phase = PHASES[phase];
+            event.time = nanos;
+            event.commit();
+        }
+    }
+
+    public long getNodes() {
+        return nodes.sum();
+    }
+
+    public long getTotalNodes() {
+        return h == 0 ? 0 : LongColorSplitting.treeNodes(h);
+    }
+
+    public long getSplits() {
+        return splits.sum();
+    }
+
+    public long getNodes(int depth) {
+        return depth < nodesPerDepth.length ? nodesPerDepth[depth].sum() : 0;
+    }
+
+    public long getPhaseMillis(int phase) {
+        return phaseNanos[phase].sum() / 1000000;
+    }
+
+    public long getElapsedMillis() {
+        if (startNanos == 0) return 0;
+        return ((endNanos != 0 ? endNanos : System.nanoTime()) - startNanos) / 1000000;
+    }
+
+    //Fraction of the nodes of T(h) colored so far
+    public double getProgress() {
+        long total = getTotalNodes();
+        return total == 0 ? 0 : (double) getNodes() / total;
+    }
+
+    //Remaining time at the rate so far, or -1 before the first node
+    public long getEtaMillis() {
+        long done = getNodes();
+        if (done == 0) return -1;
+        return (long) (getElapsedMillis() * (double) (getTotalNodes() - done) / done);
+    }
+
+    //All counters by name, in a fixed order
+    public LinkedHashMap<String, Long> snapshot() {
+        LinkedHashMap<String, Long> s = new LinkedHashMap<>();
+        s.put("height", (long) h);
+        s.put("nodes", getNodes());
+        s.put("totalNodes", getTotalNodes());
+        s.put("progressPermille", (long) (getProgress() * 1000));
+        s.put("elapsedMillis", getElapsedMillis());
+        s.put("etaMillis", getEtaMillis());
+        s.put("feasibleSplitCalls", getSplits());
+        for (int p = 0; p < PHASES.length; p++) {
+            s.put(PHASES[p] + "Millis", getPhaseMillis(p));
+        }
+        for (int d = 1; d < nodesPerDepth.length; d++) {
+            s.put("nodesDepth" + d, getNodes(d));
+        }
+        return s;
+    }
+
+    //One progress line, e.g. "    Progress: 41.3% (123456 of 298954 nodes), 2104 ms elapsed, ETA 2993 ms"
+    public String progress() {
+        return String.format("    Progress: %.1f%% (%d of %d nodes), %d ms elapsed, ETA %d ms",
+                100 * getProgress(), getNodes(), getTotalNodes(), getElapsedMillis(), getEtaMillis());
     }
 
     @Override
     public String toString() {
-        StringBuilder roots = new StringBuilder();
-        for (int addNode : addNodes) {
-            roots.append(addNode).append(" ");
+        StringBuilder s = new StringBuilder();
+        s.append("    FeasibleSplit calls: ").append(getSplits()).append('\n');
+        for (int p = 0; p < PHASES.length; p++) {
+            s.append("    Time in ").append(PHASES[p]).append(" in milliseconds: ").append(getPhaseMillis(p)).append('\n');
         }
+        s.append("    Nodes per depth:");
+        for (int d = 1; d < nodesPerDepth.length; d++) {
+            s.append(' ').append(getNodes(d));
+        }
+        return s.append('\n').toString();
+    }
 
-        return roots.toString();
+    //Prints a progress line every periodMillis on a daemon thread until stopReporting
+    public synchronized void startReporting(long periodMillis) {
+        stopReporting();
+        reporter = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(periodMillis);
+                    System.out.println(progress());
+                }
+            } catch (InterruptedException ignored) {
+                //stopped
+            }
+        }, "CSA-progress");
+        reporter.setDaemon(true);
+        reporter.start();
     }
-}
 
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.interrupt();
+            reporter = null;
+        }
+    }
 
-//-----------------------------------------NumColor class---------------------------------------------------------------
-//Stored and Sorted vector c.
-class NumColor implements Comparable<NumColor> {
+    //Publishes the metrics on the platform MBean server (e.g. for jconsole); a previous registration is replaced
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.out.println("Warning! Metrics could not be registered: " + e.getMessage());
+        }
+    }
 
-    private final int size;
-    private final char color;
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = snapshot().get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value;
+    }
 
-    public NumColor(char color, int size) {
-        this.color = color;
-        this.size = size;
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        LinkedHashMap<String, Long> s = snapshot();
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            if (s.containsKey(a)) list.add(new Attribute(a, s.get(a)));
+        }
+        return list;
     }
 
-    public char getColor() {
-        return color;
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
     }
 
-    public int getSize() {
-        return size;
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
     }
 
     @Override
-    public int compareTo(NumColor otherNumColor) {
-        return Integer.compare(getSize(), otherNumColor.getSize());
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String a : snapshot().keySet()) {
+            attributes.add(new MBeanAttributeInfo(a, "java.lang.Long", a, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Counters of the Color-Splitting Algorithm",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
     }
 }
 
 
-//---------------------------------------------------------Data export class---------------------------------------------------------------
-//Export Output. An example of T(2) as below: (first line is the height of the tree; second line and third line are nodes of the same color
-//2
-//2 6 7
-//3 4 5
-class Data {
+//Flight Recorder event of one run of ColorSplittingAlgorithm with CSAMetrics
+@Name("CSA.Run")
+@Label("Color-Splitting Run")
+@Category("CSA")
+class CSARunEvent extends Event {
+    @Label("Height")
+    int height;
+    @Label("Nodes")
+    long nodes;
+    @Label("FeasibleSplit Calls")
+    long feasibleSplitCalls;
+}
 
-    private final String PATH;
-    private String EXP;
 
-    public Data(String EXP, String PATH) {
-        this.PATH = PATH;
-        this.EXP = EXP;
+//Flight Recorder event of the time spent in one phase (split and append are sampled, see CSAMetrics.SAMPLE)
+@Name("CSA.Phase")
+@Label("Color-Splitting Phase")
+@Category("CSA")
+class CSAPhaseEvent extends Event {
+    @Label("Height")
+    int height;
+    @Label("Phase")
+    String phase;
+    @Label("Time")
+    @Timespan
+    long time;
+}
+
+
+//-----------------------------------------Parallel Color-Splitting Algorithm class---------------------------------------------
+//Runs the same recursion as ColorSplittingAlgorithm, but the left subtree (A, sequence a) and the right subtree (B, sequence b)
+//are colored as two fork/join tasks. Once FeasibleSplit has run, the left subtree uses exactly a_i nodes of every color i and
+//the right subtree exactly b_i nodes, so each subtree gets its own write offsets into every NodesSet and no two tasks write to
+//the same slot. The nodes are written to the same positions as the sequential algorithm, hence the output is identical.
+class ParallelColorSplitting {
+
+    //Subtrees of height <= DEFAULT_CUTOFF are colored sequentially by the task that reaches them
+    public static final byte DEFAULT_CUTOFF = 16;
+
+    NodesSet[] NodesSets;
+    private final ForkJoinPool pool;
+    private final byte cutoff;
+    private final ColorSplittingAlgorithm CSA = new ColorSplittingAlgorithm();
+    //setIndex[color] is the position of the NodesSet of this color in NodesSets
+    private final int[] setIndex = new int[128];
+
+    public ParallelColorSplitting() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_CUTOFF);
     }
 
-    public void SaveTreeTXT(NodesSet[] NodesSets) throws IOException {
-        if(this.EXP.contains("ON")) {
-            File file = new File(PATH + NodesSets.length + ".txt"); //Create testh.txt
-            FileWriter out = new FileWriter(file, false); //Set true for append mode
-            PrintWriter output = new PrintWriter(out);
+    public ParallelColorSplitting(int parallelism, byte cutoff) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.cutoff = cutoff;
+    }
 
-            output.println(NodesSets.length);
+    //Given a feasible sequence 𝑐 = [𝑐1, . . . , 𝑐ℎ], the algorithm finds a 𝑐-coloring of 𝑇 (ℎ)
+    public NodesSet[] ColorSplitting(byte h, List<NumColor> c) {
+        //the root of 𝑇 (ℎ) is 1
+        int R = 1;
+        NodesSets = new NodesSet[h];
 
-            Arrays.stream(NodesSets).forEach(s -> {
-                Arrays.stream(s.getAddNodes()).forEach(r -> output.print(r + " "));
-                output.println();
-            });
+        for (byte q = 0; q < h; q++) {
+            NodesSets[q] = new NodesSet(c.get(q).getColor(), c.get(q).getSize());
+            setIndex[c.get(q).getColor()] = q;
+        }
 
-            output.close();
+        //the whole tree starts writing at position 0 of every set
+        pool.invoke(new SubtreeTask(R, h, c, new int[h]));
+
+        for (NodesSet s : NodesSets) {
+            s.setSize(s.getAddNodes().length);
         }
+
+        return NodesSets;
     }
-}
 
+    public void shutdown() {
+        pool.shutdown();
+    }
 
-//-----------------------------------------CHECK the CSA outputs class---------------------------------------------------------------
-class CheckCSA{
+    //Colors the two children of R at the current offsets; returns the split (a, b) or null when h = 1
+    private List<List<NumColor>> colorChildren(int R, byte h, List<NumColor> c, int[] offsets) {
+        int A = 2 * R; //left child of 𝑅
+        int B = 2 * R + 1; //right child of 𝑅
 
-    //Check if:
-    // 1. All nodes in the tree (except root) appear exactly once across S
-    // 2. All node IDs in the tree (except root) are inside the range of IDs (from 2 to (2^(h+1) - 2))
-    // 3. Total number of nodes in the tree is the same as total nodes in the perfect binary tree.
-    public boolean IsValidAllNodeID(NodesSet[] S, int h) {
-        int nodeID;
-        int numNodes = 0;
-        int n = (int) Math.pow(2, h);
-        int minNode = 2, maxNode = 2 * n - 1;
+        //Assign Color 1 to both 𝐴 and 𝐵; Otherwise assign Color 1 to 𝐴 and Color 2 to 𝐵.
+        int q = setIndex[c.get(0).getColor()];
+        NodesSets[q].setNode(offsets[q]++, A);
+        if (c.get(0).getSize() != 2) {
+            q = setIndex[c.get(1).getColor()];
+        }
+        NodesSets[q].setNode(offsets[q]++, B);
 
-        if (S.length !=h ) {
-            System.out.println("The size of S is not " + h);
-            return false;
+        if (h == 1) return null;
+
+        //Split the feasible sequence c to a feasible sequence a and a feasible sequence b
+        List<NumColor> a = new ArrayList<>(h - 1);
+        List<NumColor> b = new ArrayList<>(h - 1);
+        CSA.FeasibleSplit(h, c).forEach((n, m) -> {
+            a.addAll(n);
+            b.addAll(m);
+        });
+        Collections.sort(a);
+        Collections.sort(b);
+
+        return Arrays.asList(a, b);
+    }
+
+    //Sequential part: offsets is advanced in DFS order, exactly as NodesSet.addNode would do
+    private void ColorSplittingRecursive(int R, byte h, List<NumColor> c, int[] offsets) {
+        if (h > 0) {
+            List<List<NumColor>> ab = colorChildren(R, h, c, offsets);
+            if (ab != null) {
+                ColorSplittingRecursive(2 * R, (byte) (h - 1), ab.get(0), offsets);
+                ColorSplittingRecursive(2 * R + 1, (byte) (h - 1), ab.get(1), offsets);
+            }
         }
+    }
 
-        //true if the corresponding node has been allocated to some sets before
-        boolean[] isAllocated = new boolean[2 * n];
+    //fork/join tasks are never serialized
+    @SuppressWarnings("serial")
+    private class SubtreeTask extends RecursiveAction {
+        private final int R;
+        private final byte h;
+        private final List<NumColor> c;
+        //offsets[q] is the first free position of NodesSets[q] for this subtree
+        private final int[] offsets;
 
-        for (int i = 0; i < isAllocated.length; i++) {
-            isAllocated[i] = false;
+        SubtreeTask(int R, byte h, List<NumColor> c, int[] offsets) {
+            this.R = R;
+            this.h = h;
+            this.c = c;
+            this.offsets = offsets;
         }
 
-        for (NodesSet nodesSet : S) {
-            numNodes += nodesSet.getSize();
-            for (int j = 0; j < nodesSet.getSize(); j++) {
-                nodeID = nodesSet.getAddNodes()[j];
-                if ((nodeID < minNode) || (nodeID > maxNode)) {
-                    System.out.println("ERROR: Nodes are out of range: " + nodeID);
-                    return false;
-                }
-                if (isAllocated[nodeID]) {
-                    System.out.println("ERROR: Overlapping sets");
-                    return false;
-                }
-                isAllocated[nodeID] = true;
+        @Override
+        protected void compute() {
+            if (h <= cutoff) {
+                ColorSplittingRecursive(R, h, c, offsets);
+                return;
             }
-        }
 
-        if (numNodes != 2 * n - 2) {
-            System.out.println("ERROR: The total number of tree nodes is not correct");
-            return false;
+            List<List<NumColor>> ab = colorChildren(R, h, c, offsets);
+            List<NumColor> a = ab.get(0);
+            //The right subtree starts after the a_i nodes that the left subtree will write in every set
+            int[] rightOffsets = offsets.clone();
+            for (NumColor x : a) {
+                rightOffsets[setIndex[x.getColor()]] += x.getSize();
+            }
+
+            invokeAll(new SubtreeTask(2 * R, (byte) (h - 1), a, offsets),
+                    new SubtreeTask(2 * R + 1, (byte) (h - 1), ab.get(1), rightOffsets));
         }
+    }
+}
 
-        return true;
+
+//-----------------------------------------Primitive Split Kernel class----------------------------------------------------------
+//FeasibleSplit(ℎ, 𝑐) on primitive arrays. A color sequence is stored as two arrays: size[i] is 𝑐𝑖 and color[i] is the index
+//of its NodesSet. Sizes are long so that the same kernel serves trees taller than T(30). The output sequences are written into arrays supplied by the caller, so the kernel never allocates.
+//The rules (and the order of equal sizes after sorting) are exactly those of ColorSplittingAlgorithm.FeasibleSplit.
+final class SplitKernel {
+
+    private SplitKernel() {
     }
 
-    //Check if sets have valid sizes
-    public boolean IsBalancedSets(NodesSet[] S, int h) {
-        Set<Integer> validSizes = setSizes(h);
-        //Second, test if sets have valid sizes
-        for (NodesSet nodesSet : S) {
-            if (!validSizes.contains(nodesSet.getSize())) {
-                //System.out.println("ERROR: Set " + i + " has an invalid size = " + S[i].getSize());
-                return false;
+    //Split the ℎ-feasible sequence (cSize, cColor) into the two (ℎ − 1)-feasible sequences (aSize, aColor) and (bSize, bColor)
+    public static void FeasibleSplit(int h, long[] cSize, int[] cColor, long[] aSize, int[] aColor, long[] bSize, int[] bColor) {
+        int i = 1; //Position 2
+        long Sa, Sb; //Left and right sums
+
+        //Case 1: 𝑐1 = 2
+        if (cSize[0] == 2) {
+            aSize[0] = cSize[i] >> 1;
+            bSize[0] = (cSize[i] + 1) >> 1;
+            aColor[0] = cColor[i];
+            bColor[0] = cColor[i];
+        }
+        //Case 2: 𝑐1 > 2; note that 𝑐1 ≥ 2 due to the feasibility of 𝑐;
+        else {
+            aSize[0] = cSize[i] - 1;
+            bSize[0] = cSize[0] - 1;
+            aColor[0] = cColor[1];
+            bColor[0] = cColor[0];
+            if (h > 2) {
+                i++;
+                long d = cSize[i] + cSize[0] - cSize[i - 1];
+                aSize[1] = (d + 1) >> 1;
+                bSize[1] = cSize[i - 1] - cSize[0] + (d >> 1);
+                aColor[1] = cColor[i];
+                bColor[1] = cColor[i];
             }
         }
-        return true;
+        Sa = 0;
+        Sb = 0;
+        for (int j = 0; j < i; j++) {
+            Sa += aSize[j];
+            Sb += bSize[j];
+        }
+        i++;
+
+        while (i < h) {
+            long half = cSize[i] >> 1;
+            if (Sa < Sb) {
+                aSize[i - 1] = cSize[i] - half;
+                bSize[i - 1] = half;
+            }
+            else {
+                aSize[i - 1] = half;
+                bSize[i - 1] = cSize[i] - half;
+            }
+            aColor[i - 1] = cColor[i];
+            bColor[i - 1] = cColor[i];
+            Sa += aSize[i - 1];
+            Sb += bSize[i - 1];
+            i++;
+        }
+
+        sort(h - 1, aSize, aColor);
+        sort(h - 1, bSize, bColor);
     }
 
-    //Check if no ancestor-descendant pair appears in any set
-    public boolean IsRelationship(NodesSet[] S) {
-        for (int i = 0; i < S.length; i++) {
-            Arrays.sort(S[i].getAddNodes());
-            for (int j = 0; j < S[i].getSize(); j++) {
-                if (IsDescendantOf(S[i].getAddNodes()[j], S[i])) {
-                    System.out.println("ERROR: Set " + i + " contains an ancestor-descendant pair");
-                    return false;
-                }
+    //Stable insertion sort by size. The split output is almost sorted, so this is close to linear.
+    public static void sort(int n, long[] size, int[] color) {
+        for (int i = 1; i < n; i++) {
+            long s = size[i];
+            if (size[i - 1] <= s) continue;
+            int col = color[i];
+            int j = i - 1;
+            while (j >= 0 && size[j] > s) {
+                size[j + 1] = size[j];
+                color[j + 1] = color[j];
+                j--;
             }
+            size[j + 1] = s;
+            color[j + 1] = col;
         }
-        return true;
     }
+}
 
-    //Using the rule: leftchild = 2*parent; rightchild = 2*parent+1
-    public static boolean IsDescendantOf(int descendant, int ancestor) {
-        int parent = descendant / 2;
 
-        while (parent > ancestor) {
-            parent = parent / 2;
+//-----------------------------------------Primitive Color-Splitting Algorithm class----------------------------------------------
+//Same coloring as ColorSplittingAlgorithm (node for node, in the same order), but the color sequences are kept in a preallocated
+//scratch stack of int arrays and the NodesSet of a color is found by its index, so no object is created per tree node.
+//The recursion can also write into any ColorClass target, e.g. the flat array of ColoringService.
+class PrimitiveColorSplitting {
+
+    NodesSet[] NodesSets;
+    //Class of every color while a coloring runs
+    private ColorClass[] target;
+    //Row d holds the sequences a and b created by the call at depth d (the root call has depth 0)
+    private long[][] aSize = new long[0][], bSize = new long[0][];
+    private int[][] aColor = new int[0][], bColor = new int[0][];
+
+    //Given a feasible sequence 𝑐 = [𝑐1, . . . , 𝑐ℎ] sorted in non-decreasing order, the algorithm finds a 𝑐-coloring of 𝑇 (ℎ)
+    public NodesSet[] ColorSplitting(byte h, List<NumColor> c) {
+        NodesSets = new NodesSet[h];
+        for (byte q = 0; q < h; q++) {
+            NodesSets[q] = new NodesSet(c.get(q).getColor(), c.get(q).getSize());
         }
-        return parent == ancestor;
+        ColorSplitting(h, LongColorSplitting.sizes(c), NodesSets);
+
+        return NodesSets;
     }
 
-    public static boolean IsDescendantOf(int descendant, NodesSet ancestorsList) {
-        for (int i = 0; i < ancestorsList.getSize(); i++) {
-            if (IsDescendantOf(descendant, ancestorsList.getAddNodes()[i])) return true;
+    //The same coloring written into classes: classes[q] receives the nodes of the q-th entry of c (h <= 30, node IDs are int)
+    public void ColorSplitting(int h, long[] c, ColorClass[] classes) {
+        long[] size = c.clone();
+        int[] color = new int[h];
+        for (int q = 0; q < h; q++) {
+            color[q] = q;
         }
-        return false;
+
+        ensureScratch(h);
+        target = classes;
+        //the root of 𝑇 (ℎ) is 1
+        ColorSplittingRecursive(1, h, size, color, 0);
+        target = null;
     }
 
-    public Set<Integer> setSizes(int h) {
-        Set<Integer> validSizes = new LinkedHashSet<>(2);
-        int n = (int) Math.pow(2, h);
-        validSizes.add((2 * n - 2) / h);
+    //The scratch stack is kept between calls and only grows when a taller tree is colored
+    private void ensureScratch(int h) {
+        if (aSize.length >= h && (h == 0 || aSize[0].length >= h)) return;
+        aSize = new long[h][h];
+        aColor = new int[h][h];
+        bSize = new long[h][h];
+        bColor = new int[h][h];
+    }
+
+    //𝑅 is the root node of the current subtree 𝑇 (ℎ); (size, color) is its feasible sequence
+    private void ColorSplittingRecursive(int R, int h, long[] size, int[] color, int depth) {
+        int A = 2 * R; //left child of 𝑅
+        int B = 2 * R + 1; //right child of 𝑅
+
+        //Assign Color 1 to both 𝐴 and 𝐵; Otherwise assign Color 1 to 𝐴 and Color 2 to 𝐵.
+        target[color[0]].addNode(A);
+        target[size[0] == 2 ? color[0] : color[1]].addNode(B);
+
+        //Split the feasible sequence c to a feasible sequence a and a feasible sequence b
+        if (h > 1) {
+            long[] as = aSize[depth], bs = bSize[depth];
+            int[] ac = aColor[depth], bc = bColor[depth];
+            SplitKernel.FeasibleSplit(h, size, color, as, ac, bs, bc);
+            ColorSplittingRecursive(A, h - 1, as, ac, depth + 1);
+            ColorSplittingRecursive(B, h - 1, bs, bc, depth + 1);
+        }
+    }
+}
+
+
+//-----------------------------------------Template Color-Splitting Algorithm class-----------------------------------------------
+//The coloring of a subtree depends only on its height ℎ and on the sizes of its sequence 𝑐; the colors only follow the positions.
+//Two subtrees with the same (ℎ, sizes) are therefore colored alike up to a shift of node IDs: the node with relative ID t
+//(t = 2^k + p, at depth k under the subtree root) is R·2^k + p = (R − 1)·2^k + t under the root R.
+//This engine keeps a bounded LRU cache of such templates and copies a repeated subtree instead of recursing into it.
+class TemplateColorSplitting {
+
+    public static final int DEFAULT_MAX_TEMPLATE_HEIGHT = 16;
+    public static final int DEFAULT_MIN_TEMPLATE_HEIGHT = 4;
+    //Budget of the cache in node IDs (4 bytes each)
+    public static final long DEFAULT_CACHE_NODES = 1L << 24;
+
+    NodesSet[] NodesSets;
+    private final int maxTemplateHeight;
+    private final int minTemplateHeight;
+    private final long cacheNodes;
+    //template[j] holds the relative IDs colored with the j-th color of the sequence, in the order they are added
+    private final LinkedHashMap<SequenceKey, int[][]> templates = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedNodes = 0;
+    private long lookups = 0;
+    private long hits = 0;
+    private long[][] aSize = new long[0][], bSize = new long[0][];
+    private int[][] aColor = new int[0][], bColor = new int[0][];
+
+    public TemplateColorSplitting() {
+        this(DEFAULT_MIN_TEMPLATE_HEIGHT, DEFAULT_MAX_TEMPLATE_HEIGHT, DEFAULT_CACHE_NODES);
+    }
+
+    public TemplateColorSplitting(int minTemplateHeight, int maxTemplateHeight, long cacheNodes) {
+        this.minTemplateHeight = minTemplateHeight;
+        this.maxTemplateHeight = maxTemplateHeight;
+        this.cacheNodes = cacheNodes;
+    }
+
+    //Given a feasible sequence 𝑐 = [𝑐1, . . . , 𝑐ℎ] sorted in non-decreasing order, the algorithm finds a 𝑐-coloring of 𝑇 (ℎ)
+    public NodesSet[] ColorSplitting(byte h, List<NumColor> c) {
+        long[] size = new long[h];
+        int[] color = new int[h];
+        NodesSets = new NodesSet[h];
+        lookups = 0;
+        hits = 0;
+
+        for (byte q = 0; q < h; q++) {
+            size[q] = c.get(q).getSize();
+            color[q] = q;
+            NodesSets[q] = new NodesSet(c.get(q).getColor(), (int) size[q]);
+        }
+
+        if (aSize.length < h || (h > 0 && aSize[0].length < h)) {
+            aSize = new long[h][h];
+            aColor = new int[h][h];
+            bSize = new long[h][h];
+            bColor = new int[h][h];
+        }
+        //the root of 𝑇 (ℎ) is 1
+        ColorSplittingRecursive(1, h, size, color, 0);
+
+        return NodesSets;
+    }
+
+    public long getLookups() {
+        return lookups;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    //Fraction of the looked-up subtrees that were copied from a template
+    public double getHitRate() {
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public void clearCache() {
+        templates.clear();
+        cachedNodes = 0;
+    }
+
+    private void ColorSplittingRecursive(int R, int h, long[] size, int[] color, int depth) {
+        if (h < minTemplateHeight || h > maxTemplateHeight) {
+            colorSubtree(R, h, size, color, depth);
+            return;
+        }
+
+        lookups++;
+        SequenceKey key = new SequenceKey(h, size);
+        int[][] template = templates.get(key);
+        if (template != null) {
+            hits++;
+            copyTemplate(R, template, color);
+            return;
+        }
+
+        //Miss: color the subtree as usual, then cut its nodes out of the sets
+        int[] start = new int[h];
+        for (int j = 0; j < h; j++) {
+            start[j] = NodesSets[color[j]].getSize();
+        }
+        colorSubtree(R, h, size, color, depth);
+
+        long templateNodes = (1L << (h + 1)) - 2;
+        if (templateNodes > cacheNodes) return;
+        template = new int[h][];
+        int shiftR = 31 - Integer.numberOfLeadingZeros(R);
+        for (int j = 0; j < h; j++) {
+            NodesSet s = NodesSets[color[j]];
+            int[] t = Arrays.copyOfRange(s.getAddNodes(), start[j], s.getSize());
+            for (int i = 0; i < t.length; i++) {
+                int k = 31 - Integer.numberOfLeadingZeros(t[i]) - shiftR;
+                t[i] -= (R - 1) << k;
+            }
+            template[j] = t;
+        }
+        templates.put(key, template);
+        cachedNodes += templateNodes;
+
+        //Evict the least recently used templates until the cache fits its budget again
+        Iterator<int[][]> it = templates.values().iterator();
+        while (cachedNodes > cacheNodes && it.hasNext()) {
+            int[][] old = it.next();
+            cachedNodes -= (1L << (old.length + 1)) - 2;
+            it.remove();
+        }
+    }
+
+    //Relative ID t at depth k becomes (R − 1)·2^k + t
+    private void copyTemplate(int R, int[][] template, int[] color) {
+        for (int j = 0; j < template.length; j++) {
+            NodesSet s = NodesSets[color[j]];
+            for (int t : template[j]) {
+                s.addNode(((R - 1) << (31 - Integer.numberOfLeadingZeros(t))) + t);
+            }
+        }
+    }
+
+    //Same step as PrimitiveColorSplitting.ColorSplittingRecursive
+    private void colorSubtree(int R, int h, long[] size, int[] color, int depth) {
+        int A = 2 * R; //left child of 𝑅
+        int B = 2 * R + 1; //right child of 𝑅
+
+        NodesSets[color[0]].addNode(A);
+        NodesSets[size[0] == 2 ? color[0] : color[1]].addNode(B);
+
+        if (h > 1) {
+            long[] as = aSize[depth], bs = bSize[depth];
+            int[] ac = aColor[depth], bc = bColor[depth];
+            SplitKernel.FeasibleSplit(h, size, color, as, ac, bs, bc);
+            ColorSplittingRecursive(A, h - 1, as, ac, depth + 1);
+            ColorSplittingRecursive(B, h - 1, bs, bc, depth + 1);
+        }
+    }
+
+    //(ℎ, [𝑐1, . . . , 𝑐ℎ]) as a hash key; the sizes are copied since the caller's arrays are scratch rows
+    static final class SequenceKey {
+        private final long[] sizes;
+        private final int hash;
+
+        SequenceKey(int h, long[] size) {
+            sizes = Arrays.copyOf(size, h);
+            hash = Arrays.hashCode(sizes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SequenceKey && Arrays.equals(sizes, ((SequenceKey) o).sizes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
+
+
+//-----------------------------------------Sorted Color-Splitting Algorithm class-------------------------------------------------
+//Same c-coloring as ColorSplittingAlgorithm, but every NodesSet comes out sorted by node ID, so no sort pass is needed afterwards.
+//The recursion visits the nodes of one depth from left to right, i.e. in increasing ID order, and all IDs of depth d are smaller
+//than those of depth d + 1. A color class is therefore sorted once its nodes are grouped by depth in the order they are added.
+//A first pass counts the nodes of every (color, depth); these counts depend only on the sizes of a subtree's sequence and are
+//memoized on (ℎ, sizes), so the pass costs a few splits per distinct subtree sequence. The second pass is the usual recursion,
+//writing each node at the next free slot of its (color, depth) block.
+class SortedColorSplitting {
+
+    NodesSet[] NodesSets;
+    //cursor[q][d]: next slot of color q for the nodes of depth d + 1
+    private int[][] cursor;
+    private final HashMap<TemplateColorSplitting.SequenceKey, long[][]> counts = new HashMap<>();
+    private long[][] aSize = new long[0][], bSize = new long[0][];
+    private int[][] aColor = new int[0][], bColor = new int[0][];
+
+    //Given a feasible sequence 𝑐 = [𝑐1, . . . , 𝑐ℎ] sorted in non-decreasing order, the algorithm finds a 𝑐-coloring of 𝑇 (ℎ)
+    public NodesSet[] ColorSplitting(byte h, List<NumColor> c) {
+        long[] size = new long[h];
+        int[] color = new int[h];
+        NodesSets = new NodesSet[h];
+
+        for (byte q = 0; q < h; q++) {
+            size[q] = c.get(q).getSize();
+            color[q] = q;
+            NodesSets[q] = new NodesSet(c.get(q).getColor(), (int) size[q]);
+        }
+
+        if (aSize.length < h || (h > 0 && aSize[0].length < h)) {
+            aSize = new long[h][h];
+            aColor = new int[h][h];
+            bSize = new long[h][h];
+            bColor = new int[h][h];
+        }
+
+        //the block of depth d starts after the nodes of smaller depths
+        long[][] count = count(h, size);
+        cursor = new int[h][h];
+        for (int q = 0; q < h; q++) {
+            int start = 0;
+            for (int d = 0; d < h; d++) {
+                cursor[q][d] = start;
+                start += (int) count[q][d];
+            }
+        }
+        counts.clear();
+
+        //the root of 𝑇 (ℎ) is 1
+        ColorSplittingRecursive(1, h, size, color, 0);
+
+        for (int q = 0; q < h; q++) {
+            NodesSets[q].setSize((int) size[q]);
+        }
+        cursor = null;
+        return NodesSets;
+    }
+
+    //Number of nodes of the i-th color of the sequence at depth e + 1 of a subtree of height h, for sorted sizes size[0..h-1]
+    private long[][] count(int h, long[] size) {
+        TemplateColorSplitting.SequenceKey key = new TemplateColorSplitting.SequenceKey(h, size);
+        long[][] count = counts.get(key);
+        if (count != null) return count;
+
+        count = new long[h][h];
+        count[0][0]++;
+        count[size[0] == 2 ? 0 : 1][0]++;
+        if (h > 1) {
+            //the colors of a and b are positions in the sequence of this subtree
+            int[] position = new int[h];
+            for (int i = 0; i < h; i++) {
+                position[i] = i;
+            }
+            long[] as = new long[h], bs = new long[h];
+            int[] ac = new int[h], bc = new int[h];
+            SplitKernel.FeasibleSplit(h, size, position, as, ac, bs, bc);
+            long[][] countA = count(h - 1, as), countB = count(h - 1, bs);
+            for (int i = 0; i < h - 1; i++) {
+                for (int e = 0; e < h - 1; e++) {
+                    count[ac[i]][e + 1] += countA[i][e];
+                    count[bc[i]][e + 1] += countB[i][e];
+                }
+            }
+        }
+        counts.put(key, count);
+        return count;
+    }
+
+    //Same step as PrimitiveColorSplitting.ColorSplittingRecursive; the children of 𝑅 have depth depth + 1
+    private void ColorSplittingRecursive(int R, int h, long[] size, int[] color, int depth) {
+        int A = 2 * R; //left child of 𝑅
+        int B = 2 * R + 1; //right child of 𝑅
+
+        int colorB = size[0] == 2 ? color[0] : color[1];
+        NodesSets[color[0]].setNode(cursor[color[0]][depth]++, A);
+        NodesSets[colorB].setNode(cursor[colorB][depth]++, B);
+
+        if (h > 1) {
+            long[] as = aSize[depth], bs = bSize[depth];
+            int[] ac = aColor[depth], bc = bColor[depth];
+            SplitKernel.FeasibleSplit(h, size, color, as, ac, bs, bc);
+            ColorSplittingRecursive(A, h - 1, as, ac, depth + 1);
+            ColorSplittingRecursive(B, h - 1, bs, bc, depth + 1);
+        }
+    }
+}
+
+
+//-----------------------------------------Color Class interface---------------------------------------------------------------
+//Storage of one color class as the recursion fills it: NodesSet (int[] on the heap), OffHeapNodesSet (direct memory or a file) and
+//CompressedNodesSet (bit-packed blocks on the heap). getNode(i) is the i-th node in the order of the store, which is the order of
+//addNode except for CompressedNodesSet (increasing node ID).
+interface ColorClass {
+
+    void addNode(long root);
+
+    long getNode(long index);
+
+    long getCount();
+
+    //All nodes in the order of getNode
+    default void forEach(LongConsumer action) {
+        for (long i = 0; i < getCount(); i++) {
+            action.accept(getNode(i));
+        }
+    }
+
+    //Creates the class of color q for size nodes
+    interface Factory {
+        ColorClass create(int q, long size) throws IOException;
+    }
+}
+
+
+//-----------------------------------------Long Color-Splitting Algorithm class--------------------------------------------------
+//Color-Splitting Algorithm for trees beyond T(30). Node IDs are long (up to T(62)), sequence sizes are computed exactly in long
+//arithmetic, colors are indices 0..h-1 instead of the 36 characters of the color table, and every color class is an
+//OffHeapNodesSet (direct memory or a memory-mapped file), so the Java heap only holds the recursion state. The classes can also
+//come from any ColorClass.Factory, e.g. CompressedNodesSets.
+class LongColorSplitting {
+
+    //Node IDs of T(h) go up to 2^(h+1) - 1, which must fit in a long
+    public static final int MAX_HEIGHT = 62;
+
+    ColorClass[] NodesSets;
+    //Directory of the color class files; null keeps the classes in direct (off-heap) memory
+    private final File directory;
+    private long[][] aSize = new long[0][], bSize = new long[0][];
+    private int[][] aColor = new int[0][], bColor = new int[0][];
+
+    public LongColorSplitting() {
+        this(null);
+    }
+
+    public LongColorSplitting(File directory) {
+        this.directory = directory;
+    }
+
+    //Given a feasible sequence 𝑐 = [𝑐1, . . . , 𝑐ℎ] sorted in non-decreasing order, the algorithm finds a 𝑐-coloring of 𝑇 (ℎ)
+    //Color i of the output is the i-th entry of c.
+    public OffHeapNodesSet[] ColorSplitting(int h, long[] c) throws IOException {
+        ColorClass[] S = ColorSplitting(h, c, (q, size) -> directory == null ? new OffHeapNodesSet(q, size)
+                : new OffHeapNodesSet(q, size, new File(directory, "color" + colorLabel(q) + ".bin")));
+        return S == null ? null : Arrays.copyOf(S, h, OffHeapNodesSet[].class);
+    }
+
+    //The same coloring into the classes made by factory
+    public ColorClass[] ColorSplitting(int h, long[] c, ColorClass.Factory factory) throws IOException {
+        if (h < 1 || h > MAX_HEIGHT || c.length != h) {
+            System.out.println("Warning! h should be between 1 and " + MAX_HEIGHT + " and c should have h entries");
+            return null;
+        }
+
+        long[] size = c.clone();
+        int[] color = new int[h];
+        NodesSets = new ColorClass[h];
+
+        for (int q = 0; q < h; q++) {
+            color[q] = q;
+            NodesSets[q] = factory.create(q, size[q]);
+        }
+
+        if (aSize.length < h || aSize[0].length < h) {
+            aSize = new long[h][h];
+            aColor = new int[h][h];
+            bSize = new long[h][h];
+            bColor = new int[h][h];
+        }
+        //the root of 𝑇 (ℎ) is 1
+        ColorSplittingRecursive(1, h, size, color, 0);
+
+        return NodesSets;
+    }
+
+    private void ColorSplittingRecursive(long R, int h, long[] size, int[] color, int depth) {
+        long A = 2 * R; //left child of 𝑅
+        long B = 2 * R + 1; //right child of 𝑅
+
+        //Assign Color 1 to both 𝐴 and 𝐵; Otherwise assign Color 1 to 𝐴 and Color 2 to 𝐵.
+        NodesSets[color[0]].addNode(A);
+        NodesSets[size[0] == 2 ? color[0] : color[1]].addNode(B);
+
+        //Split the feasible sequence c to a feasible sequence a and a feasible sequence b
+        if (h > 1) {
+            long[] as = aSize[depth], bs = bSize[depth];
+            int[] ac = aColor[depth], bc = bColor[depth];
+            SplitKernel.FeasibleSplit(h, size, color, as, ac, bs, bc);
+            ColorSplittingRecursive(A, h - 1, as, ac, depth + 1);
+            ColorSplittingRecursive(B, h - 1, bs, bc, depth + 1);
+        }
+    }
+
+    //Number of nodes of T(h) without the root: 2^(h+1) - 2
+    public static long treeNodes(int h) {
+        return (1L << (h + 1)) - 2;
+    }
+
+    //Corollary 2 (Balanced Color sequence) in exact long arithmetic, sorted in non-decreasing order
+    public static long[] balancedColorSequence(int h) {
+        long n = treeNodes(h);
+        long u = n % h;
+        long[] c = new long[h];
+
+        for (int i = 0; i < h; i++) {
+            c[i] = i < h - u ? n / h : n / h + 1;
+        }
+        return c;
+    }
+
+    //Definition 2 (Feasible Color Sequence) for a sorted long sequence: (C1) every prefix sum of length m is at least
+    //2^(m+1) - 2 and (C2) the total is 2^(h+1) - 2
+    public static boolean isFeasible(int h, long[] c) {
+        if (h < 1 || h > MAX_HEIGHT || c.length != h) return false;
+
+        long sum = 0;
+        for (int m = 1; m <= h; m++) {
+            if (m > 1 && c[m - 1] < c[m - 2]) return false;
+            sum += c[m - 1];
+            if (sum < treeNodes(m)) return false;
+        }
+        return sum == treeNodes(h);
+    }
+
+    //Sizes of a sorted List<NumColor> as used by ColorSplittingAlgorithm
+    public static long[] sizes(List<NumColor> c) {
+        long[] s = new long[c.size()];
+        for (int i = 0; i < s.length; i++) {
+            s[i] = c.get(i).getSize();
+        }
+        return s;
+    }
+
+    //The first 36 colors keep the characters of the color table; further colors are named by their number
+    public static String colorLabel(int q) {
+        char[] color = {'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q'
+                , 'R','S', 'T', 'U', 'V','W', 'X', 'Y', 'Z','0', '1', '2', '3', '4', '5', '6', '7','8', '9'};
+        return q < color.length ? String.valueOf(color[q]) : "#" + (q + 1);
+    }
+}
+
+
+//-----------------------------------------Off-heap Set of Nodes class--------------------------------------------------------
+//A color class of long node IDs stored outside the Java heap. The IDs live in LongBuffer segments of 2^27 longs (1 GB), which are
+//either direct buffers or windows of a memory-mapped file, so a class can hold more than 2^31 nodes.
+//Segments are created when the class first writes into them.
+class OffHeapNodesSet implements ColorClass {
+
+    static final int SEGMENT_SHIFT = 27;
+    static final long SEGMENT_LONGS = 1L << SEGMENT_SHIFT;
+    static final long SEGMENT_MASK = SEGMENT_LONGS - 1;
+
+    private long count = 0;
+    private final int colorSet;
+    private final long capacity;
+    private final LongBuffer[] segments;
+    //null for direct memory
+    private final FileChannel channel;
+    private final MappedByteBuffer[] mapped;
+
+    //Direct (off-heap) memory
+    public OffHeapNodesSet(int colorSet, long capacity) {
+        this.colorSet = colorSet;
+        this.capacity = capacity;
+        this.segments = new LongBuffer[(int) ((capacity + SEGMENT_LONGS - 1) >>> SEGMENT_SHIFT)];
+        this.channel = null;
+        this.mapped = null;
+    }
+
+    //Memory-mapped file of capacity * 8 bytes (little-endian longs); the content of an existing file of that size is kept
+    public OffHeapNodesSet(int colorSet, long capacity, File file) throws IOException {
+        this.colorSet = colorSet;
+        this.capacity = capacity;
+        this.segments = new LongBuffer[(int) ((capacity + SEGMENT_LONGS - 1) >>> SEGMENT_SHIFT)];
+        this.mapped = new MappedByteBuffer[segments.length];
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.channel.truncate(capacity * Long.BYTES);
+    }
+
+    public void addNode(long root) {
+        segment(count >>> SEGMENT_SHIFT).put((int) (count & SEGMENT_MASK), root);
+        count++;
+    }
+
+    public long getNode(long index) {
+        return segment(index >>> SEGMENT_SHIFT).get((int) (index & SEGMENT_MASK));
+    }
+
+    private LongBuffer segment(long s) {
+        LongBuffer buffer = segments[(int) s];
+        if (buffer == null) {
+            long longs = Math.min(SEGMENT_LONGS, capacity - (s << SEGMENT_SHIFT));
+            ByteBuffer bytes;
+            try {
+                if (channel == null) bytes = ByteBuffer.allocateDirect((int) (longs * Long.BYTES));
+                else {
+                    mapped[(int) s] = channel.map(FileChannel.MapMode.READ_WRITE, (s << SEGMENT_SHIFT) * Long.BYTES, longs * Long.BYTES);
+                    bytes = mapped[(int) s];
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer = bytes.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            segments[(int) s] = buffer;
+        }
+        return buffer;
+    }
+
+    public int getColorSet() {
+        return colorSet;
+    }
+
+    public long getSize() {
+        return count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    //Write a node at a fixed position; several threads may write different positions once allocate() was called
+    public void setNode(long index, long root) {
+        segment(index >>> SEGMENT_SHIFT).put((int) (index & SEGMENT_MASK), root);
+    }
+
+    //Create all segments now instead of on first use
+    public void allocate() {
+        for (long s = 0; s < segments.length; s++) {
+            segment(s);
+        }
+    }
+
+    //Move the fill count past n nodes that are already stored (see CheckpointedColorSplitting)
+    public void skip(long n) {
+        count += n;
+    }
+
+    //Write the pages of a memory-mapped class back to the file now
+    public void force() {
+        if (mapped == null) return;
+        for (MappedByteBuffer m : mapped) {
+            if (m != null) m.force();
+        }
+    }
+
+    //Release the segments and the file; the pages of a memory-mapped class are written back by the operating system
+    public void close() throws IOException {
+        Arrays.fill(segments, null);
+        if (mapped != null) Arrays.fill(mapped, null);
+        if (channel != null) channel.close();
+    }
+}
+
+
+//-----------------------------------------Checkpointed Color-Splitting class-----------------------------------------------------
+//LongColorSplitting into memory-mapped class files that survives a crash of the run. The subtrees rooted at depth k (the frontier)
+//are colored one after another in DFS order; every interval the class files are forced to disk and the number of finished frontier
+//subtrees is written to a checkpoint file. A later run with the same (h, c) and directory resumes from it: the recursion is
+//replayed above the frontier (rewriting the same IDs at the same slots), and a finished frontier subtree is skipped by moving the
+//fill count of every color past it, since its sequence gives the number of its nodes of each color. The slot of every node does
+//not depend on where the run stopped, so the files are byte-identical to those of an uninterrupted run.
+//The checkpoint file is removed when the coloring is complete.
+class CheckpointedColorSplitting {
+
+    public static final String CHECKPOINT = "checkpoint.txt";
+    //frontier subtrees of about 2^21 nodes
+    public static final int DEFAULT_SUBTREE_HEIGHT = 20;
+    public static final long DEFAULT_INTERVAL_MILLIS = 60000;
+
+    OffHeapNodesSet[] NodesSets;
+    private final File directory;
+    private final int subtreeHeight;
+    private final long intervalMillis;
+    private int h;
+    private long[] c;
+    private int frontier;
+    //frontier subtrees finished in this run or a previous one, and finished at the last checkpoint
+    private long done, skip;
+    private long lastCheckpoint;
+    private long[] expected;
+    private long[][] aSize, bSize;
+    private int[][] aColor, bColor;
+
+    public CheckpointedColorSplitting(File directory) {
+        this(directory, DEFAULT_SUBTREE_HEIGHT, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    public CheckpointedColorSplitting(File directory, int subtreeHeight, long intervalMillis) {
+        this.directory = directory;
+        this.subtreeHeight = subtreeHeight;
+        this.intervalMillis = intervalMillis;
+    }
+
+    //Given a feasible sequence 𝑐 = [𝑐1, . . . , 𝑐ℎ] sorted in non-decreasing order, the algorithm finds a 𝑐-coloring of 𝑇 (ℎ),
+    //starting from the checkpoint in the directory if there is one for (h, c)
+    public OffHeapNodesSet[] ColorSplitting(int h, long[] c) throws IOException {
+        if (h < 1 || h > LongColorSplitting.MAX_HEIGHT || c.length != h) {
+            System.out.println("Warning! h should be between 1 and " + LongColorSplitting.MAX_HEIGHT + " and c should have h entries");
+            return null;
+        }
+        this.h = h;
+        this.c = c.clone();
+        frontier = Math.max(0, h - subtreeHeight);
+        done = 0;
+        skip = 0;
+        expected = null;
+        readCheckpoint();
+
+        long[] size = c.clone();
+        int[] color = new int[h];
+        NodesSets = new OffHeapNodesSet[h];
+        for (int q = 0; q < h; q++) {
+            color[q] = q;
+            NodesSets[q] = new OffHeapNodesSet(q, size[q], new File(directory, "color" + LongColorSplitting.colorLabel(q) + ".bin"));
+        }
+        aSize = new long[h][h];
+        aColor = new int[h][h];
+        bSize = new long[h][h];
+        bColor = new int[h][h];
+
+        lastCheckpoint = System.currentTimeMillis();
+        //the root of 𝑇 (ℎ) is 1
+        ColorSplittingRecursive(1, h, size, color, 0);
+
+        force();
+        Files.deleteIfExists(new File(directory, CHECKPOINT).toPath());
+        return NodesSets;
+    }
+
+    //Frontier subtrees finished so far, of 2^depth
+    public long getDone() {
+        return done;
+    }
+
+    //Frontier subtrees that were skipped because a checkpoint had them
+    public long getResumed() {
+        return skip;
+    }
+
+    private void ColorSplittingRecursive(long R, int h, long[] size, int[] color, int depth) throws IOException {
+        if (depth == frontier) {
+            if (done < skip) {
+                //finished before the checkpoint: its nodes are already in the files
+                for (int i = 0; i < h; i++) {
+                    NodesSets[color[i]].skip(size[i]);
+                }
+                done++;
+                if (done == skip) verify();
+                return;
+            }
+            colorSubtree(R, h, size, color, depth);
+            done++;
+            if (System.currentTimeMillis() - lastCheckpoint >= intervalMillis) writeCheckpoint();
+            return;
+        }
+        addChildren(R, size, color);
+        split(R, h, size, color, depth);
+    }
+
+    //Same step as LongColorSplitting.ColorSplittingRecursive
+    private void colorSubtree(long R, int h, long[] size, int[] color, int depth) {
+        addChildren(R, size, color);
+        if (h > 1) {
+            long[] as = aSize[depth], bs = bSize[depth];
+            int[] ac = aColor[depth], bc = bColor[depth];
+            SplitKernel.FeasibleSplit(h, size, color, as, ac, bs, bc);
+            colorSubtree(2 * R, h - 1, as, ac, depth + 1);
+            colorSubtree(2 * R + 1, h - 1, bs, bc, depth + 1);
+        }
+    }
+
+    private void split(long R, int h, long[] size, int[] color, int depth) throws IOException {
+        if (h > 1) {
+            long[] as = aSize[depth], bs = bSize[depth];
+            int[] ac = aColor[depth], bc = bColor[depth];
+            SplitKernel.FeasibleSplit(h, size, color, as, ac, bs, bc);
+            ColorSplittingRecursive(2 * R, h - 1, as, ac, depth + 1);
+            ColorSplittingRecursive(2 * R + 1, h - 1, bs, bc, depth + 1);
+        }
+    }
+
+    //Assign Color 1 to both 𝐴 and 𝐵; Otherwise assign Color 1 to 𝐴 and Color 2 to 𝐵.
+    private void addChildren(long R, long[] size, int[] color) {
+        NodesSets[color[0]].addNode(2 * R);
+        NodesSets[size[0] == 2 ? color[0] : color[1]].addNode(2 * R + 1);
+    }
+
+    private void force() {
+        for (OffHeapNodesSet s : NodesSets) {
+            s.force();
+        }
+    }
+
+    //The data of the finished subtrees first, then the checkpoint, written to a temporary file and renamed
+    private void writeCheckpoint() throws IOException {
+        force();
+        File tmp = new File(directory, CHECKPOINT + ".tmp");
+        try (PrintWriter w = new PrintWriter(new FileWriter(tmp, false))) {
+            w.println("h " + h);
+            w.println("c " + join(c));
+            w.println("frontier " + frontier);
+            w.println("done " + done);
+            long[] counts = new long[h];
+            for (int q = 0; q < h; q++) {
+                counts[q] = NodesSets[q].getSize();
+            }
+            w.println("counts " + join(counts));
+        }
+        Files.move(tmp.toPath(), new File(directory, CHECKPOINT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    //A checkpoint of another (h, c) or frontier is ignored and the coloring starts over
+    private void readCheckpoint() throws IOException {
+        File file = new File(directory, CHECKPOINT);
+        if (!file.exists()) return;
+
+        Map<String, String> entries = new HashMap<>();
+        try (BufferedReader r = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space > 0) entries.put(line.substring(0, space), line.substring(space + 1));
+            }
+        }
+        if (!String.valueOf(h).equals(entries.get("h")) || !join(c).equals(entries.get("c"))
+                || !String.valueOf(frontier).equals(entries.get("frontier")) || entries.get("done") == null) {
+            System.out.println("Warning! " + file + " is for another run and is ignored");
+            return;
+        }
+        skip = Long.parseLong(entries.get("done"));
+        String[] counts = entries.get("counts").split(" ");
+        expected = new long[h];
+        for (int q = 0; q < h; q++) {
+            expected[q] = Long.parseLong(counts[q]);
+        }
+    }
+
+    //After the skipped subtrees the fill counts must be those of the checkpoint
+    private void verify() {
+        for (int q = 0; q < h; q++) {
+            if (NodesSets[q].getSize() != expected[q]) {
+                throw new IllegalStateException("ERROR: checkpoint count of color " + LongColorSplitting.colorLabel(q) + " is "
+                        + expected[q] + ", replay gives " + NodesSets[q].getSize());
+            }
+        }
+    }
+
+    private static String join(long[] v) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < v.length; i++) {
+            if (i > 0) s.append(' ');
+            s.append(v[i]);
+        }
+        return s.toString();
+    }
+}
+
+
+//-----------------------------------------Sharded Color-Splitting class----------------------------------------------------------
+//Colors T(h) in 2^k independent pieces so that the work can be spread over several processes or machines with smaller heaps.
+//After the top k levels of FeasibleSplit, the subtree of every node R at depth k is fully described by (R, height, sequence):
+//  plan   writes manifest.txt with (h, c, k) and one line per shard: shard index, root R, height, sizes and colors
+//  work   colors one shard (by its line of the manifest) into shard<s>-color<label>.bin, one memory-mapped file per color. The
+//         files are written as shard<s>-color<label>.bin.part and renamed only after they were forced to disk and closed, so a
+//         worker that dies leaves .part files (of full length, since a mapped file is sized up front) that merge never reads
+//  merge  replays the top k levels and assembles color<label>.bin in the order of LongColorSplitting: the few top nodes are
+//         written directly and every shard file is appended with FileChannel.transferFrom (copied by the operating system,
+//         not through the Java heap). The result is byte-identical to LongColorSplitting(directory).ColorSplitting(h, c).
+//Usage: java ShardedColorSplitting plan <dir> <k> <c1> ... <ch>
+//       java ShardedColorSplitting work <dir> <shard> [<shard> ...]
+//       java ShardedColorSplitting merge <dir>
+class ShardedColorSplitting {
+
+    public static final String MANIFEST = "manifest.txt";
+
+    //Classes of the shard being colored (null for the colors it does not use) and the scratch rows of its recursion
+    private final OffHeapNodesSet[] sets;
+    private final long[][] aSize, bSize;
+    private final int[][] aColor, bColor;
+
+    //Called for the nodes above the shards and for the shards, in the order of ColorSplitting
+    interface TopVisitor {
+        void node(long id, int color) throws IOException;
+        void shard(int index, long R, int h, long[] size, int[] color) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 4 && args[0].equals("plan")) {
+            long[] c = new long[args.length - 3];
+            for (int q = 0; q < c.length; q++) {
+                c[q] = Long.parseLong(args[q + 3]);
+            }
+            Arrays.sort(c);
+            int shards = plan(new File(args[1]), c, Integer.parseInt(args[2]));
+            if (shards > 0) System.out.println("*** " + shards + " shards written to " + new File(args[1], MANIFEST));
+        }
+        else if (args.length >= 3 && args[0].equals("work")) {
+            for (int i = 2; i < args.length; i++) {
+                work(new File(args[1]), Integer.parseInt(args[i]));
+            }
+        }
+        else if (args.length == 2 && args[0].equals("merge")) {
+            merge(new File(args[1]));
+        }
+        else {
+            System.out.println("Usage: java ShardedColorSplitting plan <dir> <k> <c1> ... <ch> | work <dir> <shard>... | merge <dir>");
+        }
+    }
+
+    //Writes the manifest of the 2^k shards of the c-coloring of T(h), h = c.length, and returns their number (0 if c is invalid)
+    public static int plan(File directory, long[] c, int k) throws IOException {
+        int h = c.length;
+        if (!LongColorSplitting.isFeasible(h, c) || k < 0 || k >= h || k > 30) {
+            System.out.println("Warning! c should be feasible and sorted, and k between 0 and min(h - 1, 30)");
+            return 0;
+        }
+        try (PrintWriter w = new PrintWriter(new FileWriter(new File(directory, MANIFEST), false))) {
+            w.println("h " + h);
+            w.println("c " + join(c));
+            w.println("depth " + k);
+            top(h, c, k, new TopVisitor() {
+                public void node(long id, int color) {
+                }
+
+                public void shard(int index, long R, int height, long[] size, int[] color) {
+                    long[] colors = new long[height];
+                    for (int i = 0; i < height; i++) {
+                        colors[i] = color[i];
+                    }
+                    w.println("shard " + index + " " + R + " " + height + " " + join(Arrays.copyOf(size, height)).replace(' ', ',')
+                            + " " + join(colors).replace(' ', ','));
+                }
+            });
+        }
+        return 1 << k;
+    }
+
+    //Colors the subtree of one shard; color q of the manifest goes to shard<s>-color<label q>.bin
+    public static void work(File directory, int shard) throws IOException {
+        Map<String, String> manifest = readManifest(directory);
+        String line = manifest.get("shard " + shard);
+        if (line == null) {
+            System.out.println("Warning! Shard " + shard + " is not in " + new File(directory, MANIFEST));
+            return;
+        }
+        String[] f = line.split(" ");
+        long R = Long.parseLong(f[0]);
+        int h = Integer.parseInt(f[1]);
+        long[] size = parse(f[2].replace(',', ' '));
+        long[] colors = parse(f[3].replace(',', ' '));
+        int[] color = new int[h];
+        OffHeapNodesSet[] sets = new OffHeapNodesSet[Integer.parseInt(manifest.get("h"))];
+        try {
+            for (int i = 0; i < h; i++) {
+                color[i] = (int) colors[i];
+                sets[color[i]] = new OffHeapNodesSet(color[i], size[i], partFile(directory, shard, color[i]));
+            }
+
+            new ShardedColorSplitting(sets, h).ColorSplittingRecursive(R, h, size, color, 0);
+
+            for (OffHeapNodesSet s : sets) {
+                if (s != null) s.force();
+            }
+        } finally {
+            for (OffHeapNodesSet s : sets) {
+                if (s != null) s.close();
+            }
+        }
+        //only a complete shard gets the names that merge reads
+        for (int i = 0; i < h; i++) {
+            Files.move(partFile(directory, shard, color[i]).toPath(), shardFile(directory, shard, color[i]).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private ShardedColorSplitting(OffHeapNodesSet[] sets, int h) {
+        this.sets = sets;
+        aSize = new long[h][h];
+        aColor = new int[h][h];
+        bSize = new long[h][h];
+        bColor = new int[h][h];
+    }
+
+    //Same step as LongColorSplitting.ColorSplittingRecursive
+    private void ColorSplittingRecursive(long R, int h, long[] size, int[] color, int depth) {
+        sets[color[0]].addNode(2 * R);
+        sets[size[0] == 2 ? color[0] : color[1]].addNode(2 * R + 1);
+        if (h > 1) {
+            long[] as = aSize[depth], bs = bSize[depth];
+            int[] ac = aColor[depth], bc = bColor[depth];
+            SplitKernel.FeasibleSplit(h, size, color, as, ac, bs, bc);
+            ColorSplittingRecursive(2 * R, h - 1, as, ac, depth + 1);
+            ColorSplittingRecursive(2 * R + 1, h - 1, bs, bc, depth + 1);
+        }
+    }
+
+    //Assembles color<label>.bin for every color from the top nodes and the shard files
+    public static void merge(File directory) throws IOException {
+        Map<String, String> manifest = readManifest(directory);
+        int h = Integer.parseInt(manifest.get("h"));
+        long[] c = parse(manifest.get("c"));
+        int k = Integer.parseInt(manifest.get("depth"));
+
+        FileChannel[] out = new FileChannel[h];
+        ByteBuffer[] pending = new ByteBuffer[h];
+        try {
+            for (int q = 0; q < h; q++) {
+                out[q] = new RandomAccessFile(new File(directory, "color" + LongColorSplitting.colorLabel(q) + ".bin"), "rw").getChannel();
+                out[q].truncate(0);
+                pending[q] = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            top(h, c, k, new TopVisitor() {
+                public void node(long id, int color) throws IOException {
+                    if (!pending[color].hasRemaining()) flush(out[color], pending[color]);
+                    pending[color].putLong(id);
+                }
+
+                public void shard(int index, long R, int height, long[] size, int[] color) throws IOException {
+                    for (int i = 0; i < height; i++) {
+                        int q = color[i];
+                        flush(out[q], pending[q]);
+                        File file = shardFile(directory, index, q);
+                        //a shard file exists only once its worker finished it (see work)
+                        if (!file.exists() || file.length() != size[i] * Long.BYTES) {
+                            throw new IOException("ERROR: " + file + " is missing or incomplete; run work for shard " + index);
+                        }
+                        try (FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+                            long position = out[q].size(), copied = 0;
+                            while (copied < in.size()) {
+                                copied += out[q].transferFrom(in, position + copied, in.size() - copied);
+                            }
+                        }
+                    }
+                }
+            });
+            for (int q = 0; q < h; q++) {
+                flush(out[q], pending[q]);
+            }
+        } finally {
+            for (FileChannel ch : out) {
+                if (ch != null) ch.close();
+            }
+        }
+    }
+
+    //The top k levels of the recursion of ColorSplitting: the children of the nodes of depth < k and then the shards
+    static void top(int h, long[] c, int k, TopVisitor visitor) throws IOException {
+        int[] color = new int[h];
+        for (int q = 0; q < h; q++) {
+            color[q] = q;
+        }
+        top(1, h, c.clone(), color, 0, k, visitor);
+    }
+
+    private static void top(long R, int h, long[] size, int[] color, int depth, int k, TopVisitor visitor) throws IOException {
+        if (depth == k) {
+            visitor.shard((int) (R - (1L << k)), R, h, size, color);
+            return;
+        }
+        visitor.node(2 * R, color[0]);
+        visitor.node(2 * R + 1, size[0] == 2 ? color[0] : color[1]);
+        if (h > 1) {
+            long[] as = new long[h], bs = new long[h];
+            int[] ac = new int[h], bc = new int[h];
+            SplitKernel.FeasibleSplit(h, size, color, as, ac, bs, bc);
+            top(2 * R, h - 1, as, ac, depth + 1, k, visitor);
+            top(2 * R + 1, h - 1, bs, bc, depth + 1, k, visitor);
+        }
+    }
+
+    private static void flush(FileChannel out, ByteBuffer pending) throws IOException {
+        pending.flip();
+        while (pending.hasRemaining()) {
+            out.write(pending, out.size());
+        }
+        pending.clear();
+    }
+
+    static File shardFile(File directory, int shard, int color) {
+        return new File(directory, "shard" + shard + "-color" + LongColorSplitting.colorLabel(color) + ".bin");
+    }
+
+    //The file of a shard color while its worker is still writing it
+    static File partFile(File directory, int shard, int color) {
+        return new File(directory, "shard" + shard + "-color" + LongColorSplitting.colorLabel(color) + ".bin.part");
+    }
+
+    //"h", "c", "depth" and "shard s" to the rest of their line
+    private static Map<String, String> readManifest(File directory) throws IOException {
+        Map<String, String> manifest = new HashMap<>();
+        try (BufferedReader r = new BufferedReader(new FileReader(new File(directory, MANIFEST)))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] f = line.split(" ", 3);
+                if (f[0].equals("shard")) manifest.put("shard " + f[1], f[2]);
+                else if (f.length > 1) manifest.put(f[0], line.substring(f[0].length() + 1));
+            }
+        }
+        return manifest;
+    }
+
+    private static long[] parse(String s) {
+        String[] f = s.trim().split(" +");
+        long[] v = new long[f.length];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = Long.parseLong(f[i]);
+        }
+        return v;
+    }
+
+    private static String join(long[] v) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < v.length; i++) {
+            if (i > 0) s.append(' ');
+            s.append(v[i]);
+        }
+        return s.toString();
+    }
+}
+
+
+//-----------------------------------------Color Oracle class--------------------------------------------------------------------
+//The color of a node only depends on the sequences met on the path from the root to it, so it can be found by replaying
+//FeasibleSplit along that path: the bits of the node ID after the leading 1 say left (0) or right (1) at every level.
+//A query costs O(h^2) time and O(h^2) memory, independent of the 2^(h+1) nodes of the tree, so it works up to T(62).
+//Colors are returned as indices into the sorted sequence c (the position of the NodesSet in ColorSplitting).
+class ColorOracle {
+
+    private long[][] aSize = new long[0][], bSize = new long[0][];
+    private int[][] aColor = new int[0][], bColor = new int[0][];
+    //batched queries, sorted by leaf-aligned key
+    private long[] keys;
+    private long[] nodes;
+    private int[] order;
+    private int[] result;
+    private int height;
+
+    //Color of nodeId in the c-coloring of T(h) made by ColorSplitting, or -1 when nodeId is the root or not in T(h), or c is not
+    //a feasible sequence of h entries
+    public int colorOf(int h, long[] c, long nodeId) {
+        if (!isNode(h, nodeId) || !LongColorSplitting.isFeasible(h, c)) return -1;
+        ensureScratch(h);
+
+        long[] size = c.clone();
+        int[] color = new int[h];
+        for (int q = 0; q < h; q++) {
+            color[q] = q;
+        }
+
+        int depth = 63 - Long.numberOfLeadingZeros(nodeId);
+        for (int d = 0; ; d++) {
+            //the child of the current subtree root on the path to nodeId
+            boolean right = ((nodeId >>> (depth - d - 1)) & 1) != 0;
+            if (d == depth - 1) {
+                return right && size[0] != 2 ? color[1] : color[0];
+            }
+            SplitKernel.FeasibleSplit(h - d, size, color, aSize[d], aColor[d], bSize[d], bColor[d]);
+            size = right ? bSize[d] : aSize[d];
+            color = right ? bColor[d] : aColor[d];
+        }
+    }
+
+    //Color of a node in the coloring of ColorSplittingAlgorithm.ColorSplitting(h, c), c sorted in non-decreasing order
+    public char colorOf(byte h, List<NumColor> c, int nodeId) {
+        int q = colorOf(h, LongColorSplitting.sizes(c), nodeId);
+        return q < 0 ? ' ' : c.get(q).getColor();
+    }
+
+    //Colors of several nodes. The queries are sorted along the tree and answered by one descent in which every subtree that
+    //contains queries is split once, so queries that share a path prefix share its splits. All colors are -1 when c is not a
+    //feasible sequence of h entries.
+    public int[] colorOf(int h, long[] c, long[] nodeIds) {
+        int n = nodeIds.length;
+        if (!LongColorSplitting.isFeasible(h, c)) {
+            int[] none = new int[n];
+            Arrays.fill(none, -1);
+            return none;
+        }
+        ensureScratch(h);
+        height = h;
+        result = new int[n];
+        keys = new long[n];
+        nodes = new long[n];
+        order = new int[n];
+
+        //keep the valid queries, keyed by the first leaf under them
+        int m = 0;
+        long[][] pairs = new long[n][];
+        for (int i = 0; i < n; i++) {
+            result[i] = -1;
+            if (isNode(h, nodeIds[i])) {
+                int depth = 63 - Long.numberOfLeadingZeros(nodeIds[i]);
+                pairs[m++] = new long[]{nodeIds[i] << (h - depth), nodeIds[i], i};
+            }
+        }
+        Arrays.sort(pairs, 0, m, (x, y) -> Long.compare(x[0], y[0]));
+        for (int i = 0; i < m; i++) {
+            keys[i] = pairs[i][0];
+            nodes[i] = pairs[i][1];
+            order[i] = (int) pairs[i][2];
+        }
+
+        long[] size = c.clone();
+        int[] color = new int[h];
+        for (int q = 0; q < h; q++) {
+            color[q] = q;
+        }
+        if (m > 0) answer(1, h, size, color, 0, 0, m);
+
+        int[] out = result;
+        keys = null;
+        nodes = null;
+        order = null;
+        result = null;
+        return out;
+    }
+
+    //Queries lo..hi-1 lie in the subtree of R of height h, apart from already answered ancestors; (size, color) is its sequence
+    private void answer(long R, int h, long[] size, int[] color, int depth, int lo, int hi) {
+        long A = 2 * R; //left child of 𝑅
+        long B = 2 * R + 1; //right child of 𝑅
+        int colorA = color[0];
+        int colorB = size[0] == 2 ? color[0] : color[1];
+
+        long mid = B << (height - depth - 1);
+        int split = lo;
+        while (split < hi && keys[split] < mid) split++;
+
+        boolean deeperA = false, deeperB = false;
+        for (int i = lo; i < hi; i++) {
+            //R and its ancestors (the only queries of the range with smaller IDs than A) were answered before
+            if (nodes[i] < A) continue;
+            if (nodes[i] == A) result[order[i]] = colorA;
+            else if (nodes[i] == B) result[order[i]] = colorB;
+            else if (i < split) deeperA = true;
+            else deeperB = true;
+        }
+
+        if (deeperA || deeperB) {
+            SplitKernel.FeasibleSplit(h, size, color, aSize[depth], aColor[depth], bSize[depth], bColor[depth]);
+            if (deeperA) answer(A, h - 1, aSize[depth], aColor[depth], depth + 1, lo, split);
+            if (deeperB) answer(B, h - 1, bSize[depth], bColor[depth], depth + 1, split, hi);
+        }
+    }
+
+    private static boolean isNode(int h, long nodeId) {
+        return h >= 1 && h <= LongColorSplitting.MAX_HEIGHT && nodeId >= 2 && nodeId <= LongColorSplitting.treeNodes(h) + 1;
+    }
+
+    private void ensureScratch(int h) {
+        if (aSize.length >= h && aSize[0].length >= h) return;
+        aSize = new long[h][h];
+        aColor = new int[h][h];
+        bSize = new long[h][h];
+        bColor = new int[h][h];
+    }
+}
+
+
+//-----------------------------------------Incremental Color-Splitting class------------------------------------------------------
+//Keeps a c-coloring of T(h) and updates it when c changes, e.g. after the capacity of one server changes.
+//Color q is the q-th entry of c (c need not be sorted, so a server keeps its color when its size moves past another one).
+//The coloring is the one of ColorSplitting, except at the nodes of an override table: there the colors of the children and the
+//split (a, b) are stored instead of computed by FeasibleSplit. recolor(c') walks down the old and the new coloring together and
+//stops in every subtree whose sequence did not change, so the whole subtree below is reused as it is. In a changed subtree the
+//old colors of the children and the old split are kept, and the difference of the sequences is pushed into one side (with one
+//compensating color) whenever that leaves both sides feasible; otherwise that subtree is re-split with FeasibleSplit.
+//The moves returned are exactly the nodes whose color differs between the old and the new coloring.
+class IncrementalColorSplitting {
+
+    //A node that changes color class
+    static final class Move {
+        final long node;
+        final int from, to;
+
+        Move(long node, int from, int to) {
+            this.node = node;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public String toString() {
+            return node + " " + LongColorSplitting.colorLabel(from) + " -> " + LongColorSplitting.colorLabel(to);
+        }
+    }
+
+    //Sequence of a subtree, in the order FeasibleSplit keeps it: sizes sorted in non-decreasing order and their colors
+    static final class State {
+        final long[] size;
+        final int[] color;
+
+        State(long[] size, int[] color) {
+            this.size = size;
+            this.color = color;
+        }
+
+        boolean same(State s) {
+            return Arrays.equals(size, s.size) && Arrays.equals(color, s.color);
+        }
+    }
+
+    //Colors of the children 𝐴 and 𝐵 of a node and the sequences a and b of their subtrees (null at height 1)
+    static final class Split {
+        final int colorA, colorB;
+        final State a, b;
+
+        Split(int colorA, int colorB, State a, State b) {
+            this.colorA = colorA;
+            this.colorB = colorB;
+            this.a = a;
+            this.b = b;
+        }
+
+        boolean same(Split s) {
+            return colorA == s.colorA && colorB == s.colorB && (a == null || (a.same(s.a) && b.same(s.b)));
+        }
+    }
+
+    private final int h;
+    private long[] c;
+    private final HashMap<Long, Split> overrides = new HashMap<>();
+    private List<Move> moves;
+    private long visited;
+
+    //Starts from the coloring made by ColorSplitting for c
+    public IncrementalColorSplitting(int h, long[] c) {
+        if (!feasible(h, c)) throw new IllegalArgumentException("c = " + Arrays.toString(c) + " is not " + h + "-feasible");
+        this.h = h;
+        this.c = c.clone();
+    }
+
+    public int getHeight() {
+        return h;
+    }
+
+    public long[] getSequence() {
+        return c.clone();
+    }
+
+    //Number of nodes whose split is stored instead of computed
+    public int getOverrides() {
+        return overrides.size();
+    }
+
+    //Number of nodes visited by the last recolor
+    public long getVisited() {
+        return visited;
+    }
+
+    //Changes the coloring to a c'-coloring and returns the nodes that change color class
+    public List<Move> recolor(long[] next) {
+        if (!feasible(h, next)) {
+            System.out.println("Warning! c = " + Arrays.toString(next) + " is NOT feasible");
+            return null;
+        }
+        moves = new ArrayList<>();
+        visited = 0;
+        recolor(1, h, root(c), root(next));
+        c = next.clone();
+        List<Move> out = moves;
+        moves = null;
+        return out;
+    }
+
+    //Color of a node, or -1 when nodeId is the root or not in T(h)
+    public int colorOf(long nodeId) {
+        if (nodeId < 2 || nodeId > LongColorSplitting.treeNodes(h) + 1) return -1;
+        int depth = 63 - Long.numberOfLeadingZeros(nodeId);
+        State s = root(c);
+        long R = 1;
+        for (int d = 0; ; d++) {
+            boolean right = ((nodeId >>> (depth - d - 1)) & 1) != 0;
+            Split split = split(R, h - d, s);
+            if (d == depth - 1) return right ? split.colorB : split.colorA;
+            s = right ? split.b : split.a;
+            R = 2 * R + (right ? 1 : 0);
+        }
+    }
+
+    //The current coloring as color classes (h <= 30); class q holds the nodes of color q
+    public NodesSet[] ColorSplitting() {
+        NodesSet[] S = new NodesSet[h];
+        for (int q = 0; q < h; q++) {
+            S[q] = new NodesSet(LongColorSplitting.colorLabel(q).charAt(0), (int) c[q]);
+        }
+        fill(S, 1, h, root(c));
+        return S;
+    }
+
+    //Applies moves to a NodeColorMap that holds the old coloring
+    public static void apply(List<Move> moves, NodeColorMap map) {
+        for (Move m : moves) {
+            map.set(m.node, m.to);
+        }
+    }
+
+    private void fill(NodesSet[] S, long R, int k, State s) {
+        Split split = split(R, k, s);
+        S[split.colorA].addNode((int) (2 * R));
+        S[split.colorB].addNode((int) (2 * R + 1));
+        if (k > 1) {
+            fill(S, 2 * R, k - 1, split.a);
+            fill(S, 2 * R + 1, k - 1, split.b);
+        }
+    }
+
+    //𝑅 is the root of a subtree of height k whose sequence changes from old to next
+    private void recolor(long R, int k, State old, State next) {
+        if (old.same(next)) return;
+        visited++;
+
+        Split before = split(R, k, old);
+        Split computed = computed(k, next);
+        Split after = keep(k, before, next);
+        if (after == null) after = computed;
+
+        if (after.same(computed)) overrides.remove(R);
+        else overrides.put(R, after);
+
+        if (before.colorA != after.colorA) moves.add(new Move(2 * R, before.colorA, after.colorA));
+        if (before.colorB != after.colorB) moves.add(new Move(2 * R + 1, before.colorB, after.colorB));
+        if (k > 1) {
+            recolor(2 * R, k - 1, before.a, after.a);
+            recolor(2 * R + 1, k - 1, before.b, after.b);
+        }
+    }
+
+    private Split split(long R, int k, State s) {
+        Split split = overrides.get(R);
+        return split != null ? split : computed(k, s);
+    }
+
+    //The split of ColorSplitting: Color 1 to both 𝐴 and 𝐵, or Color 1 to 𝐴 and Color 2 to 𝐵, then FeasibleSplit
+    private static Split computed(int k, State s) {
+        int colorA = s.color[0];
+        int colorB = s.size[0] == 2 ? s.color[0] : s.color[1];
+        if (k == 1) return new Split(colorA, colorB, null, null);
+
+        long[] as = new long[k], bs = new long[k];
+        int[] ac = new int[k], bc = new int[k];
+        SplitKernel.FeasibleSplit(k, s.size, s.color, as, ac, bs, bc);
+        return new Split(colorA, colorB, new State(Arrays.copyOf(as, k - 1), Arrays.copyOf(ac, k - 1)),
+                new State(Arrays.copyOf(bs, k - 1), Arrays.copyOf(bc, k - 1)));
+    }
+
+    //A split of next that keeps the colors of 𝐴 and 𝐵 of before and moves as little of (a, b) as it can; null if none is found
+    private Split keep(int k, Split before, State next) {
+        int x = before.colorA, y = before.colorB;
+        long[] n = vector(next);
+
+        if (k == 1) {
+            //two leaves: swap the colors of ColorSplitting if that moves fewer of them
+            int p = next.color[0], q = next.size[0] == 2 ? next.color[0] : next.color[1];
+            int stay = (x == p ? 1 : 0) + (y == q ? 1 : 0), swap = (x == q ? 1 : 0) + (y == p ? 1 : 0);
+            return swap > stay ? new Split(q, p, null, null) : null;
+        }
+
+        //r = next without the colors of 𝐴 and 𝐵; d = r - (a + b) has to be added to a and b
+        long[] a = vector(before.a), b = vector(before.b);
+        long[] d = n.clone();
+        d[x]--;
+        d[y]--;
+        if (d[x] < 0 || d[y] < 0 || (x == y && d[x] != 0)) return null;
+        for (int q = 0; q < h; q++) {
+            d[q] -= a[q] + b[q];
+        }
+
+        //d is divided into dA (added to a) and d - dA (added to b): all into a, all into b, or half each. a cannot hold the
+        //color of 𝐴 and b cannot hold the color of 𝐵, and dA must add up to 0, otherwise the rest is traded on one color j.
+        //Divisions that need no trade are tried first, since a trade adds a change to both sides.
+        for (int pass = 0; pass < 2; pass++) {
+            for (int mode = 0; mode < 3; mode++) {
+                long[] dA = new long[h];
+                long rest = 0;
+                for (int q = 0; q < h; q++) {
+                    dA[q] = q == y ? d[q] : q == x ? 0 : mode == 0 ? d[q] : mode == 1 ? 0 : Math.floorDiv(d[q], 2);
+                    rest += dA[q];
+                }
+                if ((rest == 0) != (pass == 0)) continue;
+
+                for (int t = pass == 0 ? -1 : 0; t < h; t++) {
+                    if (t >= 0 && (t == x || t == y || n[t] == 0)) continue;
+                    long[] na = a.clone(), nb = b.clone();
+                    for (int q = 0; q < h; q++) {
+                        long moved = q == t ? dA[q] - rest : dA[q];
+                        na[q] += moved;
+                        nb[q] += d[q] - moved;
+                    }
+                    State sa = state(na, before.a, n, x, k - 1), sb = state(nb, before.b, n, y, k - 1);
+                    if (sa != null && sb != null) return new Split(x, y, sa, sb);
+                    if (t < 0) break;
+                }
+            }
+        }
+        return null;
+    }
+
+    //The sequence of a child subtree with sizes v (by color), in the order of the old sequence where sizes tie;
+    //null unless it uses exactly the colors of next except the color of the child and is feasible
+    private State state(long[] v, State old, long[] next, int childColor, int k) {
+        int m = 0;
+        for (int q = 0; q < h; q++) {
+            boolean expected = q != childColor && next[q] > 0;
+            if (expected ? v[q] < 1 : v[q] != 0) return null;
+            if (expected) m++;
+        }
+        if (m != k) return null;
+
+        long[] size = new long[k];
+        int[] color = new int[k];
+        int i = 0;
+        boolean[] seen = new boolean[h];
+        for (int q : old.color) {
+            if (v[q] > 0) {
+                size[i] = v[q];
+                color[i++] = q;
+                seen[q] = true;
+            }
+        }
+        for (int q = 0; q < h; q++) {
+            if (v[q] > 0 && !seen[q]) {
+                size[i] = v[q];
+                color[i++] = q;
+            }
+        }
+        SplitKernel.sort(k, size, color);
+        return LongColorSplitting.isFeasible(k, size) ? new State(size, color) : null;
+    }
+
+    private long[] vector(State s) {
+        long[] v = new long[h];
+        for (int i = 0; i < s.size.length; i++) {
+            v[s.color[i]] = s.size[i];
+        }
+        return v;
+    }
+
+    //The sequence of the whole tree: c sorted by size, ties in color order
+    private static State root(long[] c) {
+        long[] size = c.clone();
+        int[] color = new int[c.length];
+        for (int q = 0; q < c.length; q++) {
+            color[q] = q;
+        }
+        SplitKernel.sort(c.length, size, color);
+        return new State(size, color);
+    }
+
+    private static boolean feasible(int h, long[] c) {
+        if (c == null || c.length != h) return false;
+        return LongColorSplitting.isFeasible(h, root(c).size);
+    }
+}
+
+
+//-----------------------------------------Rank/Select class---------------------------------------------------------------------
+//Maps a node ID to its slot in its color class and back, where the slot is the position of the node in the NodesSet made by
+//ColorSplitting. Both directions are computed from the split sequences along one root-to-node path, so nothing is stored:
+//at a node R, ColorSplitting adds its children A and B first, then the a_i nodes of color i of the left subtree, then the
+//right subtree. Each lookup takes O(h^2) time.
+//rank packs the slot above 8 bits of color into one long. A slot is below 2^(h+1), so the packing is exact up to MAX_HEIGHT.
+class ColorRankSelect {
+
+    public static final int MAX_HEIGHT = 55;
+
+    private final int h;
+    private final long[] c;
+    private final long[][] aSize, bSize;
+    private final int[][] aColor, bColor;
+    private final long[] before;
+
+    //c is the feasible sequence sorted in non-decreasing order; colors are indices into c
+    public ColorRankSelect(int h, long[] c) {
+        if (h > MAX_HEIGHT || !LongColorSplitting.isFeasible(h, c)) {
+            throw new IllegalArgumentException("h should be between 1 and " + MAX_HEIGHT + " and c a feasible sequence of h entries");
+        }
+        this.h = h;
+        this.c = c.clone();
+        this.aSize = new long[h][h];
+        this.bSize = new long[h][h];
+        this.aColor = new int[h][h];
+        this.bColor = new int[h][h];
+        this.before = new long[h];
+    }
+
+    //Color and slot of nodeId packed as (slot << 8) | color, or -1 when nodeId is the root or not in T(h)
+    public long rank(long nodeId) {
+        if (nodeId < 2 || nodeId > LongColorSplitting.treeNodes(h) + 1) return -1;
+
+        long[] size = c;
+        int[] color = ColorClassIterator.identity(h);
+        //before[q] counts the nodes of color q that ColorSplitting adds before the current subtree
+        Arrays.fill(before, 0);
+
+        int depth = 63 - Long.numberOfLeadingZeros(nodeId);
+        for (int d = 0; ; d++) {
+            boolean right = ((nodeId >>> (depth - d - 1)) & 1) != 0;
+            int colorA = color[0];
+            int colorB = size[0] == 2 ? color[0] : color[1];
+            if (d == depth - 1) {
+                if (!right) return pack(colorA, before[colorA]);
+                return pack(colorB, before[colorB] + (colorA == colorB ? 1 : 0));
+            }
+            before[colorA]++;
+            before[colorB]++;
+            SplitKernel.FeasibleSplit(h - d, size, color, aSize[d], aColor[d], bSize[d], bColor[d]);
+            if (right) {
+                for (int i = 0; i < h - d - 1; i++) {
+                    before[aColor[d][i]] += aSize[d][i];
+                }
+            }
+            size = right ? bSize[d] : aSize[d];
+            color = right ? bColor[d] : aColor[d];
+        }
+    }
+
+    //The node in slot offset of color class q, or -1 when there is no such slot
+    public long select(int q, long offset) {
+        if (q < 0 || q >= h || offset < 0 || offset >= c[q]) return -1;
+
+        long R = 1;
+        long[] size = c;
+        int[] color = ColorClassIterator.identity(h);
+        for (int d = 0; ; d++) {
+            int colorA = color[0];
+            int colorB = size[0] == 2 ? color[0] : color[1];
+            if (colorA == q) {
+                if (offset == 0) return 2 * R;
+                offset--;
+            }
+            if (colorB == q) {
+                if (offset == 0) return 2 * R + 1;
+                offset--;
+            }
+            SplitKernel.FeasibleSplit(h - d, size, color, aSize[d], aColor[d], bSize[d], bColor[d]);
+            //the left subtree holds exactly a_q nodes of color q
+            int i = ColorClassIterator.indexOf(h - d - 1, aColor[d], q);
+            long left = i < 0 ? 0 : aSize[d][i];
+            if (offset < left) {
+                R = 2 * R;
+                size = aSize[d];
+                color = aColor[d];
+            }
+            else {
+                offset -= left;
+                R = 2 * R + 1;
+                size = bSize[d];
+                color = bColor[d];
+            }
+        }
+    }
+
+    //Exact for offset < 2^56 and color < 256
+    public static long pack(int color, long offset) {
+        return (offset << 8) | color;
+    }
+
+    public static int color(long rank) {
+        return (int) (rank & 0xFF);
+    }
+
+    public static long offset(long rank) {
+        return rank >>> 8;
+    }
+}
+
+
+//-----------------------------------------Color Class Iterator class-------------------------------------------------------------
+//Lists the nodes of a single color in the order ColorSplitting adds them to its NodesSet, without coloring the other classes.
+//It walks the recursion of ColorSplittingRecursive with an explicit stack, but enters a subtree only if its split sequence still
+//contains the target color; a subtree whose sequence has no entry for the color (for instance below a node of that color)
+//cannot contain it. The heap used is the stack of O(h) frames, whatever the height of the tree.
+class ColorClassIterator implements PrimitiveIterator.OfLong {
+
+    private final int target;
+    private final int h;
+    private final long[] root;
+    private final int[] state;
+    //sequence of the frame at depth d, and the two sequences it splits into
+    private final long[][] size, aSize, bSize;
+    private final int[][] color, aColor, bColor;
+    private int top;
+    private final long[] pending = new long[2];
+    private int pendingHead = 0, pendingTail = 0;
+    private long remaining;
+
+    //Nodes of color target (an index into c) in the c-coloring of T(h); c is sorted in non-decreasing order
+    public ColorClassIterator(int h, long[] c, int target) {
+        this(1, h, c, identity(h), target);
+    }
+
+    //Nodes of color target in the subtree of R (R excluded) of height h with feasible sequence (size, color)
+    ColorClassIterator(long R, int h, long[] size, int[] color, int target) {
+        this.target = target;
+        this.h = h;
+        this.root = new long[h];
+        this.state = new int[h];
+        this.size = new long[h][];
+        this.color = new int[h][];
+        this.aSize = new long[h][h];
+        this.bSize = new long[h][h];
+        this.aColor = new int[h][h];
+        this.bColor = new int[h][h];
+        this.top = -1;
+
+        int i = indexOf(h, color, target);
+        remaining = i < 0 ? 0 : size[i];
+        if (i >= 0) push(0, R, size, color);
+    }
+
+    static int[] identity(int h) {
+        int[] color = new int[h];
+        for (int q = 0; q < h; q++) {
+            color[q] = q;
+        }
+        return color;
+    }
+
+    static int indexOf(int n, int[] color, int target) {
+        for (int i = 0; i < n; i++) {
+            if (color[i] == target) return i;
+        }
+        return -1;
+    }
+
+    //Nodes of this walk that have not been returned yet
+    public long remaining() {
+        return remaining;
+    }
+
+    @Override
+    public boolean hasNext() {
+        advance();
+        return pendingHead < pendingTail;
+    }
+
+    @Override
+    public long nextLong() {
+        if (!hasNext()) throw new NoSuchElementException();
+        remaining--;
+        return pending[pendingHead++];
+    }
+
+    private void push(int d, long R, long[] s, int[] col) {
+        top = d;
+        root[d] = R;
+        size[d] = s;
+        color[d] = col;
+        state[d] = 0;
+    }
+
+    private void advance() {
+        if (pendingHead < pendingTail) return;
+        pendingHead = 0;
+        pendingTail = 0;
+
+        while (pendingTail == 0 && top >= 0) {
+            int d = top;
+            int hd = h - d; //height of the subtree of root[d]
+            switch (state[d]) {
+                //Color the two children of root[d], then split its sequence
+                case 0:
+                    if (color[d][0] == target) pending[pendingTail++] = 2 * root[d];
+                    if ((size[d][0] == 2 ? color[d][0] : color[d][1]) == target) pending[pendingTail++] = 2 * root[d] + 1;
+                    if (hd > 1) {
+                        SplitKernel.FeasibleSplit(hd, size[d], color[d], aSize[d], aColor[d], bSize[d], bColor[d]);
+                        state[d] = 1;
+                    }
+                    else top--;
+                    break;
+                //Left subtree, skipped when a has no entry for the target color
+                case 1:
+                    state[d] = 2;
+                    if (indexOf(hd - 1, aColor[d], target) >= 0) push(d + 1, 2 * root[d], aSize[d], aColor[d]);
+                    break;
+                //Right subtree
+                case 2:
+                    state[d] = 3;
+                    if (indexOf(hd - 1, bColor[d], target) >= 0) push(d + 1, 2 * root[d] + 1, bSize[d], bColor[d]);
+                    break;
+                default:
+                    top--;
+            }
+        }
+    }
+}
+
+
+//-----------------------------------------Color Class Spliterator class----------------------------------------------------------
+//Spliterator over the nodes of one color, in the same order as ColorClassIterator. It splits by expanding its first subtree
+//into the children of the subtree root and the two split subtrees, so the parts are independent walks that can run on
+//different threads (or servers). The number of nodes of the color in a subtree is its entry in the split sequence, so the
+//spliterator is SIZED and SUBSIZED.
+class ColorClassSpliterator implements Spliterator.OfLong {
+
+    private final int target;
+    //pending work in encounter order: single nodes (height 0) and subtrees
+    private final ArrayDeque<Task> tasks;
+    private ColorClassIterator current;
+
+    private static final class Task {
+        final long root;
+        final int h;
+        final long[] size;
+        final int[] color;
+        final long count;
+
+        Task(long root, int h, long[] size, int[] color, long count) {
+            this.root = root;
+            this.h = h;
+            this.size = size;
+            this.color = color;
+            this.count = count;
+        }
+    }
+
+    //Nodes of color target (an index into c) in the c-coloring of T(h); c is sorted in non-decreasing order
+    public ColorClassSpliterator(int h, long[] c, int target) {
+        this.target = target;
+        this.tasks = new ArrayDeque<>();
+        int[] color = ColorClassIterator.identity(h);
+        int i = ColorClassIterator.indexOf(h, color, target);
+        if (i >= 0) tasks.add(new Task(1, h, c.clone(), color, c[i]));
+    }
+
+    private ColorClassSpliterator(int target, ArrayDeque<Task> tasks, ColorClassIterator current) {
+        this.target = target;
+        this.tasks = tasks;
+        this.current = current;
+    }
+
+    //The stream of the nodes of one color, sequential or parallel
+    public static LongStream stream(int h, long[] c, int target, boolean parallel) {
+        return StreamSupport.longStream(new ColorClassSpliterator(h, c, target), parallel);
+    }
+
+    @Override
+    public boolean tryAdvance(LongConsumer action) {
+        while (true) {
+            if (current != null) {
+                if (current.hasNext()) {
+                    action.accept(current.nextLong());
+                    return true;
+                }
+                current = null;
+            }
+            Task t = tasks.pollFirst();
+            if (t == null) return false;
+            if (t.h == 0) {
+                action.accept(t.root);
+                return true;
+            }
+            current = new ColorClassIterator(t.root, t.h, t.size, t.color, target);
+        }
+    }
+
+    @Override
+    public OfLong trySplit() {
+        //Expand a lone subtree until there is something to hand off
+        while (current == null && tasks.size() == 1 && tasks.peekFirst().h > 1) {
+            expand(tasks.pollFirst());
+        }
+
+        int parts = tasks.size() + (current == null ? 0 : 1);
+        if (parts < 2) return null;
+
+        //The prefix (the walk in progress and the first half of the tasks) goes to the new spliterator
+        ArrayDeque<Task> prefix = new ArrayDeque<>();
+        for (int k = (current == null ? 0 : 1); k < parts / 2; k++) {
+            prefix.add(tasks.pollFirst());
+        }
+        ColorClassSpliterator split = new ColorClassSpliterator(target, prefix, current);
+        current = null;
+        return split;
+    }
+
+    //Replace the subtree of t.root by its colored children and its two split subtrees, in this order
+    private void expand(Task t) {
+        long A = 2 * t.root; //left child of 𝑅
+        long B = 2 * t.root + 1; //right child of 𝑅
+
+        if (t.color[0] == target) tasks.add(new Task(A, 0, null, null, 1));
+        if ((t.size[0] == 2 ? t.color[0] : t.color[1]) == target) tasks.add(new Task(B, 0, null, null, 1));
+
+        long[] aSize = new long[t.h - 1], bSize = new long[t.h - 1];
+        int[] aColor = new int[t.h - 1], bColor = new int[t.h - 1];
+        SplitKernel.FeasibleSplit(t.h, t.size, t.color, aSize, aColor, bSize, bColor);
+        int i = ColorClassIterator.indexOf(t.h - 1, aColor, target);
+        if (i >= 0) tasks.add(new Task(A, t.h - 1, aSize, aColor, aSize[i]));
+        i = ColorClassIterator.indexOf(t.h - 1, bColor, target);
+        if (i >= 0) tasks.add(new Task(B, t.h - 1, bSize, bColor, bSize[i]));
+    }
+
+    @Override
+    public long estimateSize() {
+        long n = current == null ? 0 : current.remaining();
+        for (Task t : tasks) {
+            n += t.count;
+        }
+        return n;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+}
+
+
+//-----------------------------------------Coloring Sink interface---------------------------------------------------------------
+//Receives the (node, color) assignments of a coloring while the recursion makes them, so that the color classes never have to be
+//held in memory. Color q is the q-th entry of the sorted sequence c, and the nodes of one color arrive in the same order as
+//NodesSet.addNode would store them.
+interface ColoringSink {
+
+    //Called once before the first assignment
+    void begin(int h, long[] c) throws IOException;
+
+    //node[i] has color color[i] for i < n; the caller reuses both arrays after the call returns
+    void accept(long[] node, int[] color, int n) throws IOException;
+
+    //Called once after the last assignment
+    void end() throws IOException;
+
+    //Called instead of a successful end() when the generation or the sink failed, also after a failed begin() or end(): stops the
+    //threads and closes the files of the sink. The output is incomplete; errors while releasing are dropped in favour of the failure.
+    default void abort() {
+    }
+}
+
+
+//-----------------------------------------Streaming Color-Splitting Algorithm class---------------------------------------------
+//Same recursion as LongColorSplitting, but the colored sibling pairs are pushed into a ColoringSink in batches instead of being
+//stored in color classes. The heap used by the algorithm is one batch plus the scratch stack.
+class StreamingColorSplitting {
+
+    public static final int DEFAULT_BATCH = 1 << 16;
+
+    private final long[] batchNodes;
+    private final int[] batchColors;
+    private int n;
+    private ColoringSink sink;
+    private long[][] aSize = new long[0][], bSize = new long[0][];
+    private int[][] aColor = new int[0][], bColor = new int[0][];
+
+    public StreamingColorSplitting() {
+        this(DEFAULT_BATCH);
+    }
+
+    public StreamingColorSplitting(int batch) {
+        batchNodes = new long[batch];
+        batchColors = new int[batch];
+    }
+
+    //Given a feasible sequence 𝑐 = [𝑐1, . . . , 𝑐ℎ] sorted in non-decreasing order, streams a 𝑐-coloring of 𝑇 (ℎ) into the sink
+    public void ColorSplitting(int h, long[] c, ColoringSink sink) throws IOException {
+        if (h < 1 || h > LongColorSplitting.MAX_HEIGHT || c.length != h) {
+            System.out.println("Warning! h should be between 1 and " + LongColorSplitting.MAX_HEIGHT + " and c should have h entries");
+            return;
+        }
+
+        long[] size = c.clone();
+        int[] color = new int[h];
+        for (int q = 0; q < h; q++) {
+            color[q] = q;
+        }
+
+        if (aSize.length < h || aSize[0].length < h) {
+            aSize = new long[h][h];
+            aColor = new int[h][h];
+            bSize = new long[h][h];
+            bColor = new int[h][h];
+        }
+
+        this.sink = sink;
+        n = 0;
+        try {
+            sink.begin(h, c.clone());
+            //the root of 𝑇 (ℎ) is 1
+            ColorSplittingRecursive(1, h, size, color, 0);
+            if (n > 0) sink.accept(batchNodes, batchColors, n);
+            sink.end();
+        } catch (Throwable e) {
+            sink.abort();
+            throw e;
+        } finally {
+            this.sink = null;
+        }
+    }
+
+    private void ColorSplittingRecursive(long R, int h, long[] size, int[] color, int depth) throws IOException {
+        //Assign Color 1 to both 𝐴 and 𝐵; Otherwise assign Color 1 to 𝐴 and Color 2 to 𝐵.
+        emit(2 * R, color[0]);
+        emit(2 * R + 1, size[0] == 2 ? color[0] : color[1]);
+
+        //Split the feasible sequence c to a feasible sequence a and a feasible sequence b
+        if (h > 1) {
+            long[] as = aSize[depth], bs = bSize[depth];
+            int[] ac = aColor[depth], bc = bColor[depth];
+            SplitKernel.FeasibleSplit(h, size, color, as, ac, bs, bc);
+            ColorSplittingRecursive(2 * R, h - 1, as, ac, depth + 1);
+            ColorSplittingRecursive(2 * R + 1, h - 1, bs, bc, depth + 1);
+        }
+    }
+
+    private void emit(long node, int color) throws IOException {
+        batchNodes[n] = node;
+        batchColors[n] = color;
+        if (++n == batchNodes.length) {
+            sink.accept(batchNodes, batchColors, n);
+            n = 0;
+        }
+    }
+}
+
+
+//-----------------------------------------Coloring Sinks----------------------------------------------------------------------
+//Counts the nodes of every color
+class CountingSink implements ColoringSink {
+
+    private long[] counts = new long[0];
+    private long total = 0;
+
+    @Override
+    public void begin(int h, long[] c) {
+        counts = new long[h];
+        total = 0;
+    }
+
+    @Override
+    public void accept(long[] node, int[] color, int n) {
+        for (int i = 0; i < n; i++) {
+            counts[color[i]]++;
+        }
+        total += n;
+    }
+
+    @Override
+    public void end() {
+    }
+
+    public long[] getCounts() {
+        return counts;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+}
+
+
+//Order-sensitive 64-bit hash (FNV-1a over the node IDs) of every color class; two colorings have equal hashes when their classes
+//hold the same nodes in the same order
+class HashingSink implements ColoringSink {
+
+    static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    static final long FNV_PRIME = 0x100000001b3L;
+
+    private long[] hashes = new long[0];
+
+    @Override
+    public void begin(int h, long[] c) {
+        hashes = new long[h];
+        Arrays.fill(hashes, FNV_OFFSET);
+    }
+
+    @Override
+    public void accept(long[] node, int[] color, int n) {
+        for (int i = 0; i < n; i++) {
+            hashes[color[i]] = (hashes[color[i]] ^ node[i]) * FNV_PRIME;
+        }
+    }
+
+    @Override
+    public void end() {
+    }
+
+    public long[] getHashes() {
+        return hashes;
+    }
+
+    //The same hashes computed from stored color classes
+    public static long[] hash(NodesSet[] S) {
+        long[] hashes = new long[S.length];
+        for (int q = 0; q < S.length; q++) {
+            hashes[q] = FNV_OFFSET;
+            for (int j = 0; j < S[q].getSize(); j++) {
+                hashes[q] = (hashes[q] ^ S[q].getAddNodes()[j]) * FNV_PRIME;
+            }
+        }
+        return hashes;
+    }
+}
+
+
+//Writes every color class to its own file "color<label>.bin" of little-endian longs, the layout of a memory-mapped
+//OffHeapNodesSet. Each class goes through a small direct buffer, so the heap use does not depend on h.
+class ClassFileSink implements ColoringSink {
+
+    public static final int DEFAULT_BUFFER_BYTES = 1 << 16;
+
+    private final File directory;
+    private final int bufferBytes;
+    private FileChannel[] channels = new FileChannel[0];
+    private ByteBuffer[] buffers = new ByteBuffer[0];
+
+    public ClassFileSink(File directory) {
+        this(directory, DEFAULT_BUFFER_BYTES);
+    }
+
+    public ClassFileSink(File directory, int bufferBytes) {
+        this.directory = directory;
+        this.bufferBytes = bufferBytes;
+    }
+
+    @Override
+    public void begin(int h, long[] c) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory);
+        channels = new FileChannel[h];
+        buffers = new ByteBuffer[h];
+        try {
+            for (int q = 0; q < h; q++) {
+                File file = new File(directory, "color" + LongColorSplitting.colorLabel(q) + ".bin");
+                channels[q] = new RandomAccessFile(file, "rw").getChannel();
+                channels[q].truncate(0);
+                buffers[q] = ByteBuffer.allocateDirect(bufferBytes).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException e) {
+            //close the files opened before the failure
+            for (FileChannel channel : channels) {
+                if (channel != null) channel.close();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void accept(long[] node, int[] color, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            ByteBuffer buffer = buffers[color[i]];
+            buffer.putLong(node[i]);
+            if (!buffer.hasRemaining()) drain(color[i]);
+        }
+    }
+
+    @Override
+    public void end() throws IOException {
+        for (int q = 0; q < channels.length; q++) {
+            drain(q);
+            channels[q].close();
+        }
+    }
+
+    @Override
+    public void abort() {
+        for (FileChannel channel : channels) {
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException e) {
+                //the failure that caused the abort is reported instead
+            }
+        }
+    }
+
+    private void drain(int q) throws IOException {
+        ByteBuffer buffer = buffers[q];
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channels[q].write(buffer);
+        }
+        buffer.clear();
+    }
+}
+
+
+//Writes every color class to its own shard file "color<label>.bin" (the layout of ClassFileSink), for one storage server per color,
+//while the coloring is still being generated. The generator fills one direct buffer per class; a full buffer goes through a bounded
+//queue to one of the writer threads, which writes it with its FileChannel and hands the buffer back. Class q always goes to writer
+//q % writers, so the buffers of a class are written in order, by one thread, and its CRC32 is computed as they pass. At most
+//buffers direct buffers exist, so when the disks are slower than the recursion the generator waits for a free one; otherwise
+//the generation and the writes overlap. They overlap only when the sink is fed by StreamingColorSplitting (--engine stream);
+//with any other engine the classes are complete before BatchRunner.replay pushes them into the sink. end() writes "checksums.txt": one line "color<label>.bin <bytes> <crc32>" per class.
+class ShardExportSink implements ColoringSink {
+
+    public static final int DEFAULT_BUFFER_BYTES = 1 << 20;
+    public static final String CHECKSUMS = "checksums.txt";
+
+    private final File directory;
+    private final int bufferBytes;
+    private final int writerCount;
+    private final int bufferCount;
+    private BlockingQueue<ByteBuffer> free;
+    private List<BlockingQueue<Integer>> queues = new ArrayList<>();
+    private ByteBuffer[] current = new ByteBuffer[0];
+    //buffers queued for class q, in order; only writer q % writerCount takes from it
+    private List<ConcurrentLinkedQueue<ByteBuffer>> pending = new ArrayList<>();
+    private FileChannel[] channels = new FileChannel[0];
+    private CRC32[] crcs = new CRC32[0];
+    private long[] bytes = new long[0];
+    private Thread[] writers = new Thread[0];
+    private volatile IOException failure;
+
+    public ShardExportSink(File directory) {
+        this(directory, DEFAULT_BUFFER_BYTES, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    public ShardExportSink(File directory, int bufferBytes, int writerCount) {
+        this.directory = directory;
+        this.bufferBytes = bufferBytes;
+        this.writerCount = writerCount;
+        //one buffer being filled per class, plus two in flight per writer
+        this.bufferCount = 2 * writerCount;
+    }
+
+    @Override
+    public void begin(int h, long[] c) throws IOException {
+        failure = null;
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory);
+        channels = new FileChannel[h];
+        crcs = new CRC32[h];
+        bytes = new long[h];
+        current = new ByteBuffer[h];
+        pending = new ArrayList<>(h);
+        free = new ArrayBlockingQueue<>(h + bufferCount);
+        try {
+            for (int q = 0; q < h; q++) {
+                File file = new File(directory, "color" + LongColorSplitting.colorLabel(q) + ".bin");
+                channels[q] = new RandomAccessFile(file, "rw").getChannel();
+                channels[q].truncate(0);
+                crcs[q] = new CRC32();
+                pending.add(new ConcurrentLinkedQueue<>());
+                current[q] = ByteBuffer.allocateDirect(bufferBytes).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException e) {
+            //close the files opened before the failure
+            for (FileChannel channel : channels) {
+                if (channel != null) channel.close();
+            }
+            throw e;
+        }
+        for (int i = 0; i < bufferCount; i++) {
+            free.add(ByteBuffer.allocateDirect(bufferBytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        queues = new ArrayList<>(writerCount);
+        writers = new Thread[writerCount];
+        for (int w = 0; w < writerCount; w++) {
+            //a writer never has more classes queued than there are buffers
+            BlockingQueue<Integer> queue = new ArrayBlockingQueue<>(h + bufferCount + 1);
+            queues.add(queue);
+            writers[w] = new Thread(() -> write(queue), "shard-writer-" + w);
+            writers[w].start();
+        }
+    }
+
+    @Override
+    public void accept(long[] node, int[] color, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            ByteBuffer buffer = current[color[i]];
+            buffer.putLong(node[i]);
+            if (!buffer.hasRemaining()) {
+                hand(color[i], buffer);
+                current[color[i]] = take();
+            }
+        }
+    }
+
+    @Override
+    public void end() throws IOException {
+        for (int q = 0; q < current.length; q++) {
+            hand(q, current[q]);
+        }
+        for (BlockingQueue<Integer> queue : queues) {
+            put(queue, -1);
+        }
+        try {
+            for (Thread writer : writers) writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the shard writers", e);
+        }
+        for (FileChannel channel : channels) channel.close();
+        if (failure != null) throw failure;
+
+        try (PrintWriter out = new PrintWriter(new FileWriter(new File(directory, CHECKSUMS), false))) {
+            for (int q = 0; q < channels.length; q++) {
+                out.println("color" + LongColorSplitting.colorLabel(q) + ".bin " + bytes[q] + " " + Long.toHexString(crcs[q].getValue()));
+            }
+        }
+    }
+
+    //Stops every writer, also those still waiting in their queue after another writer failed, and closes the shards without a
+    //checksums.txt
+    @Override
+    public void abort() {
+        for (Thread writer : writers) writer.interrupt();
+        for (Thread writer : writers) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        writers = new Thread[0];
+        for (FileChannel channel : channels) {
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException e) {
+                //the failure that caused the abort is reported instead
+            }
+        }
+    }
+
+    //CRC32 of every class, valid after end()
+    public long[] getChecksums() {
+        long[] values = new long[crcs.length];
+        for (int q = 0; q < crcs.length; q++) values[q] = crcs[q].getValue();
+        return values;
+    }
+
+    //Recompute the CRC32 of every shard in directory, in parallel, and compare them with checksums.txt
+    public static boolean verify(File directory, ForkJoinPool pool) throws IOException {
+        List<String> lines = Files.readAllLines(new File(directory, CHECKSUMS).toPath());
+        return LinearCheckCSA.forRange(pool, lines.size(), 1, (from, to) -> {
+            for (int k = (int) from; k < to; k++) {
+                String[] f = lines.get(k).trim().split(" +");
+                File file = new File(directory, f[0]);
+                CRC32 crc = new CRC32();
+                ByteBuffer buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_BYTES);
+                try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+                    while (channel.read(buffer) > 0 || buffer.position() > 0) {
+                        buffer.flip();
+                        crc.update(buffer);
+                        buffer.clear();
+                    }
+                    if (channel.size() != Long.parseLong(f[1]) || crc.getValue() != Long.parseLong(f[2], 16)) {
+                        System.out.println("ERROR: " + file + " does not match its checksum");
+                        return false;
+                    }
+                } catch (IOException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    private void hand(int q, ByteBuffer buffer) throws IOException {
+        if (failure != null) throw failure;
+        pending.get(q).add(buffer);
+        put(queues.get(q % writerCount), q);
+    }
+
+    private void write(BlockingQueue<Integer> queue) {
+        try {
+            while (true) {
+                int q = queue.take();
+                if (q < 0) return;
+                ByteBuffer buffer = pending.get(q).poll();
+                buffer.flip();
+                if (failure == null) {
+                    bytes[q] += buffer.remaining();
+                    ByteBuffer view = buffer.duplicate();
+                    crcs[q].update(view);
+                    while (buffer.hasRemaining()) {
+                        channels[q].write(buffer);
+                    }
+                }
+                buffer.clear();
+                //the last buffer of every class is not taken back, so free never overflows
+                free.offer(buffer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            //any failure ends the writer, so it must reach the generator, which would otherwise wait for buffers forever
+            failure = e instanceof IOException ? (IOException) e : new IOException("A shard writer failed", e);
+        }
+    }
+
+    private ByteBuffer take() throws IOException {
+        try {
+            ByteBuffer buffer;
+            //poll with a timeout so that a failed writer does not leave the generator blocked forever
+            while ((buffer = free.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                if (failure != null) throw failure;
+            }
+            return buffer;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a free buffer", e);
+        }
+    }
+
+    private void put(BlockingQueue<Integer> queue, int q) throws IOException {
+        try {
+            queue.put(q);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while handing a buffer to the shard writers", e);
+        }
+    }
+}
+
+
+//Writes the assignments to any OutputStream (a socket, a pipe, ...) as a stand-in for a network consumer:
+//h, the sequence c, then one (long node, byte color) record per assignment, then the node 0 as end marker
+class OutputStreamSink implements ColoringSink {
+
+    private final DataOutputStream out;
+
+    public OutputStreamSink(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    }
+
+    @Override
+    public void begin(int h, long[] c) throws IOException {
+        out.writeByte(h);
+        for (long x : c) {
+            out.writeLong(x);
+        }
+    }
+
+    @Override
+    public void accept(long[] node, int[] color, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            out.writeLong(node[i]);
+            out.writeByte(color[i]);
+        }
+    }
+
+    @Override
+    public void end() throws IOException {
+        out.writeLong(0);
+        out.flush();
+    }
+}
+
+
+//Decouples the generator from a slower consumer: batches are copied into a fixed pool of chunks and handed to a consumer thread
+//through a bounded queue. When every chunk is in use, accept blocks until the consumer frees one (backpressure), so the memory in
+//flight is at most chunks * chunkSize assignments. Errors of the consumer are rethrown to the generator.
+class PipelinedSink implements ColoringSink {
+
+    public static final int DEFAULT_CHUNK = 1 << 16;
+    public static final int DEFAULT_CHUNKS = 8;
+
+    private final ColoringSink downstream;
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Chunk> full;
+    private final int chunkSize;
+    private Chunk current;
+    private Thread consumer;
+    private volatile IOException failure;
+
+    private static final class Chunk {
+        final long[] node;
+        final int[] color;
+        int n;
+
+        Chunk(int size) {
+            node = new long[size];
+            color = new int[size];
+        }
+    }
+
+    //Marks the end of the stream in the queue
+    private static final Chunk END = new Chunk(0);
+
+    public PipelinedSink(ColoringSink downstream) {
+        this(downstream, DEFAULT_CHUNK, DEFAULT_CHUNKS);
+    }
+
+    public PipelinedSink(ColoringSink downstream, int chunkSize, int chunks) {
+        this.downstream = downstream;
+        this.chunkSize = chunkSize;
+        this.free = new ArrayBlockingQueue<>(chunks);
+        this.full = new ArrayBlockingQueue<>(chunks + 1);
+        for (int i = 0; i < chunks; i++) {
+            free.add(new Chunk(chunkSize));
+        }
+    }
+
+    @Override
+    public void begin(int h, long[] c) throws IOException {
+        failure = null;
+        downstream.begin(h, c);
+        consumer = new Thread(this::consume, "coloring-sink");
+        consumer.start();
+        current = take();
+    }
+
+    @Override
+    public void accept(long[] node, int[] color, int n) throws IOException {
+        int i = 0;
+        while (i < n) {
+            int k = Math.min(n - i, chunkSize - current.n);
+            System.arraycopy(node, i, current.node, current.n, k);
+            System.arraycopy(color, i, current.color, current.n, k);
+            current.n += k;
+            i += k;
+            if (current.n == chunkSize) {
+                put(current);
+                current = take();
+            }
+        }
+    }
+
+    @Override
+    public void end() throws IOException {
+        if (current.n > 0) put(current);
+        put(END);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the sink", e);
+        }
+        if (failure != null) throw failure;
+        downstream.end();
+    }
+
+    //The consumer may wait for a chunk or write one; an interrupt ends it either way
+    @Override
+    public void abort() {
+        if (consumer != null) {
+            consumer.interrupt();
+            try {
+                consumer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            consumer = null;
+        }
+        downstream.abort();
+    }
+
+    private void consume() {
+        try {
+            while (true) {
+                Chunk chunk = full.take();
+                if (chunk == END) return;
+                downstream.accept(chunk.node, chunk.color, chunk.n);
+                chunk.n = 0;
+                free.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            //any failure ends the consumer, so it must reach the generator, which would otherwise wait for chunks forever
+            failure = e instanceof IOException ? (IOException) e : new IOException("The sink failed", e);
+        }
+    }
+
+    private Chunk take() throws IOException {
+        try {
+            Chunk chunk;
+            //poll with a timeout so that a failed consumer does not leave the generator blocked forever
+            while ((chunk = free.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                if (failure != null) throw failure;
+            }
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a free chunk", e);
+        }
+    }
+
+    private void put(Chunk chunk) throws IOException {
+        if (failure != null) throw failure;
+        try {
+            full.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while handing a chunk to the sink", e);
+        }
+    }
+}
+
+
+//-----------------------------------------Set of Nodes have the same color class------------------------------------------------------------
+/* An example of a perfect binary tree with h = 2
+                       1
+                    /    \
+                  2       3
+                /  \    /  \
+               4   5   6    7
+*/
+//Each set will contain all node with the same color
+class NodesSet implements ColorClass {
+
+    private int count = 0;
+    private final char colorSet;
+    //Array of node IDs (R)
+    private final int [] addNodes;
+
+    public NodesSet(char colorSet, int size) {
+        this.colorSet = colorSet;
+        addNodes = new int [size];
+    }
+
+    public void addNode(int root) {
+        //array start from 0, whereas node colored start from 2
+        addNodes[count] = root;
+        count++;
+    }
+
+    public void addNode(long root) {
+        addNodes[count] = (int) root;
+        count++;
+    }
+
+    public long getNode(long index) {
+        return addNodes[(int) index];
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    //Write a node at a fixed position; used when several threads fill disjoint ranges of the same set
+    public void setNode(int index, int root) {
+        addNodes[index] = root;
+    }
+
+    public int [] getAddNodes() {
+        return addNodes;
+    }
+
+    public char getColorSet() {
+        return colorSet;
+    }
+
+    public int getSize() {
+        return count;
+    }
+
+    public void setSize(int count) {
+        this.count = count;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder roots = new StringBuilder();
+        for (int addNode : addNodes) {
+            roots.append(addNode).append(" ");
+        }
+
+        return roots.toString();
+    }
+}
+
+
+//-----------------------------------------Compressed Set of Nodes class--------------------------------------------------------
+//A color class stored as bit-packed blocks instead of an int per node. The recursion adds the nodes of one depth from left to
+//right, so within one depth the IDs of a class increase, by about h on average. The class is therefore kept as one lane per depth
+//and every lane as blocks of BLOCK nodes: the first ID as a varint, the bit width of the largest gap in the block, and the gaps to
+//the previous ID packed in that width. A lane fills its current block in a small staging array and packs it when it is full;
+//the start of every packed block is kept in the lane's block index. The bytes live in pages of 2^20 bytes (a block never crosses a
+//page), so the class grows without copying.
+//Nodes are read back in increasing ID order (depth by depth), either all of them or the i-th one, which unpacks one gap and sums
+//the gaps before it in its block. Within a depth the nodes must be added in increasing order, as all engines do. LongColorSplitting
+//builds it directly (--engine compressed); CompressedSink fills it from any engine.
+class CompressedNodesSet implements ColorClass {
+
+    static final int BLOCK = 128;
+    static final int PAGE_SHIFT = 20;
+    static final int PAGE_BYTES = 1 << PAGE_SHIFT;
+    //first ID, width and BLOCK - 1 gaps of up to 64 bits
+    static final int MAX_BLOCK_BYTES = 10 + 1 + 8 * BLOCK;
+
+    private final int colorSet;
+    private long count = 0;
+    private byte[][] pages = new byte[0][];
+    private int page = -1;
+    private int position = PAGE_BYTES;
+    //per depth: number of nodes, staged nodes of the open block and start (page << PAGE_SHIFT | offset) of the packed blocks
+    private long[] laneCount = new long[0];
+    private long[][] staging = new long[0][];
+    private long[][] blockStart = new long[0][];
+
+    public CompressedNodesSet(int colorSet) {
+        this.colorSet = colorSet;
+    }
+
+    public void addNode(long root) {
+        int depth = 63 - Long.numberOfLeadingZeros(root);
+        if (depth >= laneCount.length) {
+            laneCount = Arrays.copyOf(laneCount, depth + 1);
+            staging = Arrays.copyOf(staging, depth + 1);
+            blockStart = Arrays.copyOf(blockStart, depth + 1);
+        }
+        if (staging[depth] == null) {
+            staging[depth] = new long[BLOCK];
+            blockStart[depth] = new long[4];
+        }
+
+        long n = laneCount[depth];
+        int i = (int) (n % BLOCK);
+        if (i > 0 && root <= staging[depth][i - 1]) {
+            throw new IllegalArgumentException("Node " + root + " is not above the previous node of its depth");
+        }
+        staging[depth][i] = root;
+        laneCount[depth]++;
+        count++;
+        if (i == BLOCK - 1) pack(depth, (int) (n / BLOCK));
+    }
+
+    //The index-th node in increasing ID order
+    public long getNode(long index) {
+        int depth = 0;
+        while (index >= laneCount[depth]) {
+            index -= laneCount[depth++];
+        }
+        int block = (int) (index / BLOCK), i = (int) (index % BLOCK);
+        if (block == laneCount[depth] / BLOCK) return staging[depth][i];
+
+        long start = blockStart[depth][block];
+        byte[] p = pages[(int) (start >>> PAGE_SHIFT)];
+        int[] at = {(int) (start & (PAGE_BYTES - 1))};
+        long node = readVarint(p, at);
+        int width = p[at[0]++];
+        for (int k = 0; k < i; k++) {
+            node += bits(p, at[0], (long) k * width, width);
+        }
+        return node;
+    }
+
+    //All nodes in increasing ID order, without the search of getNode
+    @Override
+    public void forEach(LongConsumer action) {
+        int[] at = new int[1];
+        for (int depth = 0; depth < laneCount.length; depth++) {
+            long blocks = laneCount[depth] / BLOCK;
+            for (int block = 0; block < blocks; block++) {
+                long start = blockStart[depth][block];
+                byte[] p = pages[(int) (start >>> PAGE_SHIFT)];
+                at[0] = (int) (start & (PAGE_BYTES - 1));
+                long node = readVarint(p, at);
+                int width = p[at[0]++];
+                action.accept(node);
+                for (int k = 0; k < BLOCK - 1; k++) {
+                    node += bits(p, at[0], (long) k * width, width);
+                    action.accept(node);
+                }
+            }
+            for (int i = 0; i < laneCount[depth] % BLOCK; i++) {
+                action.accept(staging[depth][i]);
+            }
+        }
+    }
+
+    public int getColorSet() {
+        return colorSet;
+    }
+
+    public long getSize() {
+        return count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    //Heap used by the pages, the block indexes and the staging arrays
+    public long getBytes() {
+        long bytes = 0;
+        for (byte[] p : pages) {
+            if (p != null) bytes += p.length;
+        }
+        for (int d = 0; d < laneCount.length; d++) {
+            if (staging[d] != null) bytes += (long) (staging[d].length + blockStart[d].length) * Long.BYTES;
+        }
+        return bytes;
+    }
+
+    //Cut the last page and the block indexes to what is in use once the class is complete
+    public void trim() {
+        if (page >= 0 && position < pages[page].length) {
+            pages[page] = Arrays.copyOf(pages[page], position);
+        }
+        for (int d = 0; d < laneCount.length; d++) {
+            if (blockStart[d] != null) blockStart[d] = Arrays.copyOf(blockStart[d], (int) Math.max(1, laneCount[d] / BLOCK));
+        }
+    }
+
+    //Packs the full staging block of a lane as its block number block
+    private void pack(int depth, int block) {
+        if (position > PAGE_BYTES - MAX_BLOCK_BYTES) {
+            page++;
+            if (page == pages.length) pages = Arrays.copyOf(pages, Math.max(4, 2 * page));
+            pages[page] = new byte[PAGE_BYTES];
+            position = 0;
+        }
+        //a trimmed page grows back when the class is appended to again
+        else if (pages[page].length < PAGE_BYTES) pages[page] = Arrays.copyOf(pages[page], PAGE_BYTES);
+
+        if (block == blockStart[depth].length) blockStart[depth] = Arrays.copyOf(blockStart[depth], 2 * block);
+        blockStart[depth][block] = ((long) page << PAGE_SHIFT) | position;
+
+        long[] s = staging[depth];
+        long max = 0;
+        for (int k = 1; k < BLOCK; k++) {
+            max |= s[k] - s[k - 1];
+        }
+        int width = 64 - Long.numberOfLeadingZeros(max);
+
+        byte[] p = pages[page];
+        long v = s[0];
+        while ((v & ~0x7FL) != 0) {
+            p[position++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        p[position++] = (byte) v;
+        p[position++] = (byte) width;
+
+        //gaps in little-endian bit order, at most 32 bits at a time into the accumulator
+        long acc = 0;
+        int accBits = 0;
+        for (int k = 1; k < BLOCK; k++) {
+            long gap = s[k] - s[k - 1];
+            for (int done = 0; done < width; ) {
+                int take = Math.min(32, width - done);
+                acc |= ((gap >>> done) & ((1L << take) - 1)) << accBits;
+                accBits += take;
+                done += take;
+                while (accBits >= 8) {
+                    p[position++] = (byte) acc;
+                    acc >>>= 8;
+                    accBits -= 8;
+                }
+            }
+        }
+        if (accBits > 0) p[position++] = (byte) acc;
+    }
+
+    //width bits starting bitPos bits after p[base]
+    private static long bits(byte[] p, int base, long bitPos, int width) {
+        long v = 0;
+        for (int done = 0; done < width; ) {
+            int take = Math.min(32, width - done);
+            long at = bitPos + done;
+            int i = base + (int) (at >>> 3), shift = (int) (at & 7);
+            long word = 0;
+            for (int k = 0; k * 8 < take + shift; k++) {
+                word |= (long) (p[i + k] & 0xFF) << (8 * k);
+            }
+            v |= ((word >>> shift) & ((1L << take) - 1)) << done;
+            done += take;
+        }
+        return v;
+    }
+
+    private static long readVarint(byte[] p, int[] at) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = p[at[0]++];
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return v;
+    }
+}
+
+
+//Stores the coloring as one CompressedNodesSet per color
+class CompressedSink implements ColoringSink {
+
+    private CompressedNodesSet[] sets = new CompressedNodesSet[0];
+
+    @Override
+    public void begin(int h, long[] c) {
+        sets = new CompressedNodesSet[h];
+        for (int q = 0; q < h; q++) {
+            sets[q] = new CompressedNodesSet(q);
+        }
+    }
+
+    @Override
+    public void accept(long[] node, int[] color, int n) {
+        for (int i = 0; i < n; i++) {
+            sets[color[i]].addNode(node[i]);
+        }
+    }
+
+    @Override
+    public void end() {
+        for (CompressedNodesSet s : sets) {
+            s.trim();
+        }
+    }
+
+    public CompressedNodesSet[] getSets() {
+        return sets;
+    }
+
+    //Heap of all classes
+    public long getBytes() {
+        long bytes = 0;
+        for (CompressedNodesSet s : sets) {
+            bytes += s.getBytes();
+        }
+        return bytes;
+    }
+}
+
+
+//-----------------------------------------NumColor class---------------------------------------------------------------
+//Stored and Sorted vector c.
+class NumColor implements Comparable<NumColor> {
+
+    private final int size;
+    private final char color;
+
+    public NumColor(char color, int size) {
+        this.color = color;
+        this.size = size;
+    }
+
+    public char getColor() {
+        return color;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public int compareTo(NumColor otherNumColor) {
+        return Integer.compare(getSize(), otherNumColor.getSize());
+    }
+}
+
+
+//---------------------------------------------------------Data export class---------------------------------------------------------------
+//Export Output. An example of T(2) as below: (first line is the height of the tree; second line and third line are nodes of the same color
+//2
+//2 6 7
+//3 4 5
+class Data {
+
+    private final String PATH;
+    private String EXP;
+
+    public Data(String EXP, String PATH) {
+        this.PATH = PATH;
+        this.EXP = EXP;
+    }
+
+    public void SaveTreeTXT(NodesSet[] NodesSets) throws IOException {
+        if(this.EXP.contains("ON")) {
+            File file = new File(PATH + NodesSets.length + ".txt"); //Create testh.txt
+            FileWriter out = new FileWriter(file, false); //Set true for append mode
+            PrintWriter output = new PrintWriter(out);
+
+            output.println(NodesSets.length);
+
+            Arrays.stream(NodesSets).forEach(s -> {
+                Arrays.stream(s.getAddNodes()).forEach(r -> output.print(r + " "));
+                output.println();
+            });
+
+            output.close();
+        }
+    }
+
+    //Export Output in the binary format of ColoringFileWriter (testh.csac): the color sequence, the class sizes and every class
+    //sorted and delta/varint encoded. The NodesSets themselves are not reordered.
+    public void SaveTreeBIN(NodesSet[] NodesSets) throws IOException {
+        if(this.EXP.contains("ON")) {
+            WriteTreeBIN(new File(PATH + NodesSets.length + ".csac"), NodesSets);
+        }
+    }
+
+    public static void WriteTreeBIN(File file, NodesSet[] NodesSets) throws IOException {
+        int h = NodesSets.length;
+        long[] c = new long[h];
+        for (int q = 0; q < h; q++) {
+            c[q] = NodesSets[q].getSize();
+        }
+
+        try (ColoringFileWriter out = new ColoringFileWriter(file, h, c)) {
+            for (int q = 0; q < h; q++) {
+                int[] nodes = Arrays.copyOf(NodesSets[q].getAddNodes(), NodesSets[q].getSize());
+                Arrays.sort(nodes);
+                out.beginClass(q);
+                for (int node : nodes) {
+                    out.add(node);
+                }
+                out.endClass();
+            }
+        }
+    }
+
+    //Load a file written by SaveTreeTXT. The file does not store colors, so line q gets the q-th color of the color table.
+    public static NodesSet[] LoadTreeTXT(File file) throws IOException {
+        char[] color = {'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q'
+                , 'R','S', 'T', 'U', 'V','W', 'X', 'Y', 'Z','0', '1', '2', '3', '4', '5', '6', '7','8', '9'};
+
+        try (BufferedReader in = new BufferedReader(new FileReader(file), 1 << 16)) {
+            int h = Integer.parseInt(in.readLine().trim());
+            NodesSet[] NodesSets = new NodesSet[h];
+
+            for (int q = 0; q < h; q++) {
+                String line = in.readLine().trim();
+                String[] nodes = line.isEmpty() ? new String[0] : line.split(" +");
+                NodesSets[q] = new NodesSet(color[q], nodes.length);
+                for (String node : nodes) {
+                    NodesSets[q].addNode(Integer.parseInt(node));
+                }
+            }
+            return NodesSets;
+        }
+    }
+
+    //Load a file written by SaveTreeBIN; the classes come back sorted
+    public static NodesSet[] LoadTreeBIN(File file) throws IOException {
+        try (ColoringFileReader in = new ColoringFileReader(file)) {
+            NodesSet[] NodesSets = new NodesSet[in.getHeight()];
+
+            for (int q = 0; q < NodesSets.length; q++) {
+                NodesSets[q] = new NodesSet(LongColorSplitting.colorLabel(q).charAt(0), (int) in.getCount(q));
+                PrimitiveIterator.OfLong it = in.iterator(q);
+                while (it.hasNext()) {
+                    NodesSets[q].addNode((int) it.nextLong());
+                }
+            }
+            return NodesSets;
+        }
+    }
+}
+
+
+//---------------------------------------------------------Binary coloring file writer-------------------------------------------------------
+//Version 1 of the binary coloring format (little-endian):
+//  int magic "CSAC", int version, int h,
+//  long c[h] (color sequence), long count[h] (nodes stored per class), long dataOffset[h], long indexOffset[h],
+//  then for every class: the sorted node IDs as unsigned LEB128 varints of the gaps (the first gap is the ID itself),
+//  followed by its block index, one (long ID, long byte offset) pair for every BLOCK-th node of the class.
+//Classes are written one after another through a FileChannel; the header is filled in when the file is closed after the last class.
+class ColoringFileWriter implements Closeable {
+
+    static final int MAGIC = 0x43415343; //"CSAC" in little-endian
+    static final int VERSION = 1;
+    static final int BLOCK = 4096;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+    private final int h;
+    private final long[] c, count, dataOffset, indexOffset;
+    //set once a write failed; the header is then not written
+    private boolean failed;
+    //file position of buffer[0]
+    private long position;
+    private int q = -1;
+    //last is the base of the next gap (0 at a block start), previous the last ID added to the class
+    private long last, previous;
+    //block index of the current class: ID and byte offset of every BLOCK-th node
+    private long[] blockIds = new long[16], blockOffsets = new long[16];
+    private int blocks;
+
+    public ColoringFileWriter(File file, int h, long[] c) throws IOException {
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.channel.truncate(0);
+        this.h = h;
+        this.c = c.clone();
+        this.count = new long[h];
+        this.dataOffset = new long[h];
+        this.indexOffset = new long[h];
+        this.position = headerBytes(h);
+    }
+
+    static long headerBytes(int h) {
+        return 12 + 32L * h;
+    }
+
+    //Classes have to be written in the order 0, 1, ..., h-1
+    public void beginClass(int q) {
+        this.q = q;
+        dataOffset[q] = position + buffer.position();
+        last = 0;
+        previous = 0;
+        blocks = 0;
+    }
+
+    //IDs of a class have to be strictly increasing
+    public void add(long id) throws IOException {
+        if (count[q] > 0 && id <= previous) {
+            failed = true;
+            throw new IllegalArgumentException("Node " + id + " follows node " + previous + " in class " + q
+                    + "; the IDs of a class have to be strictly increasing");
+        }
+        if (count[q] % BLOCK == 0) {
+            if (blocks == blockIds.length) {
+                blockIds = Arrays.copyOf(blockIds, 2 * blocks);
+                blockOffsets = Arrays.copyOf(blockOffsets, 2 * blocks);
+            }
+            blockIds[blocks] = id;
+            blockOffsets[blocks] = position + buffer.position();
+            blocks++;
+            //a block starts with the full ID so that it can be decoded on its own
+            last = 0;
+        }
+        if (buffer.remaining() < 10) drain();
+        long gap = id - last;
+        while ((gap & ~0x7FL) != 0) {
+            buffer.put((byte) ((gap & 0x7F) | 0x80));
+            gap >>>= 7;
+        }
+        buffer.put((byte) gap);
+        last = id;
+        previous = id;
+        count[q]++;
+    }
+
+    public void endClass() throws IOException {
+        indexOffset[q] = position + buffer.position();
+        for (int i = 0; i < blocks; i++) {
+            if (buffer.remaining() < 16) drain();
+            buffer.putLong(blockIds[i]);
+            buffer.putLong(blockOffsets[i]);
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+        buffer.clear();
+    }
+
+    //Writes the header only if every class was written without an error, so the file of an aborted or failed export has no magic
+    //number and is rejected by ColoringFileReader
+    @Override
+    public void close() throws IOException {
+        if (failed || q != h - 1 || h > 0 && indexOffset[q] == 0) {
+            channel.close();
+            if (!failed) throw new IOException("The coloring file is incomplete: " + (q + 1) + " of " + h + " classes were begun");
+            return;
+        }
+        try {
+            drain();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        ByteBuffer header = ByteBuffer.allocate((int) headerBytes(h)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(h);
+        for (long x : c) header.putLong(x);
+        for (long x : count) header.putLong(x);
+        for (long x : dataOffset) header.putLong(x);
+        for (long x : indexOffset) header.putLong(x);
+        header.flip();
+        long p = 0;
+        while (header.hasRemaining()) {
+            p += channel.write(header, p);
+        }
+        channel.close();
+    }
+}
+
+
+//---------------------------------------------------------Binary coloring file reader-------------------------------------------------------
+//Memory-mapped reader of the format written by ColoringFileWriter. The file is mapped in windows of 1 GB, so files larger than 2 GB
+//can be read; any class can be scanned on its own, and the block index gives random access to the i-th node of a class.
+class ColoringFileReader implements Closeable {
+
+    private static final int WINDOW_SHIFT = 30;
+    private static final long WINDOW_MASK = (1L << WINDOW_SHIFT) - 1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] windows;
+    private final int h;
+    private final long[] c, count, dataOffset, indexOffset;
+
+    public ColoringFileReader(File file) throws IOException {
+        channel = new RandomAccessFile(file, "r").getChannel();
+        long size;
+        try {
+            size = channel.size();
+            windows = new MappedByteBuffer[(int) ((size + WINDOW_MASK) >>> WINDOW_SHIFT)];
+            for (int w = 0; w < windows.length; w++) {
+                long start = (long) w << WINDOW_SHIFT;
+                windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << WINDOW_SHIFT, size - start));
+                windows[w].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        if (size < 12 || getInt(0) != ColoringFileWriter.MAGIC) {
+            channel.close();
+            throw new IOException("Not a coloring file: " + file);
+        }
+        if (getInt(4) != ColoringFileWriter.VERSION) {
+            channel.close();
+            throw new IOException("Unsupported coloring file version " + getInt(4) + ": " + file);
+        }
+        h = getInt(8);
+        if (h < 0 || h > LongColorSplitting.MAX_HEIGHT || ColoringFileWriter.headerBytes(h) > size) {
+            channel.close();
+            throw new IOException("Truncated coloring file header: " + file);
+        }
+        c = new long[h];
+        count = new long[h];
+        dataOffset = new long[h];
+        indexOffset = new long[h];
+        long p = 12;
+        for (int q = 0; q < h; q++, p += 8) c[q] = getLong(p);
+        for (int q = 0; q < h; q++, p += 8) count[q] = getLong(p);
+        for (int q = 0; q < h; q++, p += 8) dataOffset[q] = getLong(p);
+        for (int q = 0; q < h; q++, p += 8) indexOffset[q] = getLong(p);
+    }
+
+    public int getHeight() {
+        return h;
+    }
+
+    public long[] getSequence() {
+        return c.clone();
+    }
+
+    public long getCount(int q) {
+        return count[q];
+    }
+
+    //The i-th smallest node ID of class q: jump to its block, then decode at most BLOCK - 1 gaps
+    public long get(int q, long i) {
+        long block = i / ColoringFileWriter.BLOCK;
+        long id = getLong(indexOffset[q] + 16 * block);
+        long p = getLong(indexOffset[q] + 16 * block + 8);
+        p = skipVarint(p);
+        for (long k = block * ColoringFileWriter.BLOCK; k < i; k++) {
+            long gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = getByte(p++);
+                gap |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += gap;
+        }
+        return id;
+    }
+
+    //Sequential scan of class q in increasing order
+    public PrimitiveIterator.OfLong iterator(int q) {
+        return new PrimitiveIterator.OfLong() {
+            private long p = dataOffset[q];
+            private long k = 0;
+            private long last = 0;
+
+            @Override
+            public boolean hasNext() {
+                return k < count[q];
+            }
+
+            @Override
+            public long nextLong() {
+                if (k >= count[q]) throw new NoSuchElementException();
+                if (k % ColoringFileWriter.BLOCK == 0) last = 0;
+                long gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = getByte(p++);
+                    gap |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                k++;
+                last += gap;
+                return last;
+            }
+        };
+    }
+
+    //Number of index blocks of class q; every block can be decoded on its own
+    public long getBlocks(int q) {
+        return (count[q] + ColoringFileWriter.BLOCK - 1) / ColoringFileWriter.BLOCK;
+    }
+
+    //Nodes of the blocks from .. to-1 of class q in increasing order; stops with false as soon as action returns false
+    public boolean scan(int q, long from, long to, LongPredicate action) {
+        for (long block = from; block < to; block++) {
+            long p = getLong(indexOffset[q] + 16 * block + 8);
+            long n = Math.min(ColoringFileWriter.BLOCK, count[q] - block * ColoringFileWriter.BLOCK);
+            long id = 0;
+            for (long k = 0; k < n; k++) {
+                long gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = getByte(p++);
+                    gap |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                if (gap == 0 && k > 0) {
+                    System.out.println("ERROR: Node " + id + " appears twice in set " + q);
+                    return false;
+                }
+                id += gap;
+                if (!action.test(id)) return false;
+            }
+        }
+        return true;
+    }
+
+    //Class q as an array (at most 2^31 - 1 nodes)
+    public long[] readClass(int q) {
+        long[] nodes = new long[(int) count[q]];
+        PrimitiveIterator.OfLong it = iterator(q);
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = it.nextLong();
+        }
+        return nodes;
+    }
+
+    private long skipVarint(long p) {
+        while (getByte(p) < 0) p++;
+        return p + 1;
+    }
+
+    private byte getByte(long p) {
+        return windows[(int) (p >>> WINDOW_SHIFT)].get((int) (p & WINDOW_MASK));
+    }
+
+    private int getInt(long p) {
+        if ((p & WINDOW_MASK) <= WINDOW_MASK - 3) return windows[(int) (p >>> WINDOW_SHIFT)].getInt((int) (p & WINDOW_MASK));
+        int v = 0;
+        for (int k = 3; k >= 0; k--) v = (v << 8) | (getByte(p + k) & 0xFF);
+        return v;
+    }
+
+    private long getLong(long p) {
+        if ((p & WINDOW_MASK) <= WINDOW_MASK - 7) return windows[(int) (p >>> WINDOW_SHIFT)].getLong((int) (p & WINDOW_MASK));
+        long v = 0;
+        for (int k = 7; k >= 0; k--) v = (v << 8) | (getByte(p + k) & 0xFF);
+        return v;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+
+//-----------------------------------------CHECK the CSA outputs class---------------------------------------------------------------
+class CheckCSA{
+
+    //Check if:
+    // 1. All nodes in the tree (except root) appear exactly once across S
+    // 2. All node IDs in the tree (except root) are inside the range of IDs (from 2 to (2^(h+1) - 2))
+    // 3. Total number of nodes in the tree is the same as total nodes in the perfect binary tree.
+    public boolean IsValidAllNodeID(NodesSet[] S, int h) {
+        int nodeID;
+        int numNodes = 0;
+        int n = (int) Math.pow(2, h);
+        int minNode = 2, maxNode = 2 * n - 1;
+
+        if (S.length !=h ) {
+            System.out.println("The size of S is not " + h);
+            return false;
+        }
+
+        //true if the corresponding node has been allocated to some sets before
+        boolean[] isAllocated = new boolean[2 * n];
+
+        for (int i = 0; i < isAllocated.length; i++) {
+            isAllocated[i] = false;
+        }
+
+        for (NodesSet nodesSet : S) {
+            numNodes += nodesSet.getSize();
+            for (int j = 0; j < nodesSet.getSize(); j++) {
+                nodeID = nodesSet.getAddNodes()[j];
+                if ((nodeID < minNode) || (nodeID > maxNode)) {
+                    System.out.println("ERROR: Nodes are out of range: " + nodeID);
+                    return false;
+                }
+                if (isAllocated[nodeID]) {
+                    System.out.println("ERROR: Overlapping sets");
+                    return false;
+                }
+                isAllocated[nodeID] = true;
+            }
+        }
+
+        if (numNodes != 2 * n - 2) {
+            System.out.println("ERROR: The total number of tree nodes is not correct");
+            return false;
+        }
+
+        return true;
+    }
+
+    //Check if sets have valid sizes
+    public boolean IsBalancedSets(NodesSet[] S, int h) {
+        Set<Integer> validSizes = setSizes(h);
+        //Second, test if sets have valid sizes
+        for (NodesSet nodesSet : S) {
+            if (!validSizes.contains(nodesSet.getSize())) {
+                //System.out.println("ERROR: Set " + i + " has an invalid size = " + S[i].getSize());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Check if no ancestor-descendant pair appears in any set
+    public boolean IsRelationship(NodesSet[] S) {
+        for (int i = 0; i < S.length; i++) {
+            for (int j = 0; j < S[i].getSize(); j++) {
+                if (IsDescendantOf(S[i].getAddNodes()[j], S[i])) {
+                    System.out.println("ERROR: Set " + i + " contains an ancestor-descendant pair");
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    //Using the rule: leftchild = 2*parent; rightchild = 2*parent+1
+    public static boolean IsDescendantOf(int descendant, int ancestor) {
+        int parent = descendant / 2;
+
+        while (parent > ancestor) {
+            parent = parent / 2;
+        }
+        return parent == ancestor;
+    }
+
+    public static boolean IsDescendantOf(int descendant, NodesSet ancestorsList) {
+        for (int i = 0; i < ancestorsList.getSize(); i++) {
+            if (IsDescendantOf(descendant, ancestorsList.getAddNodes()[i])) return true;
+        }
+        return false;
+    }
+
+    public Set<Integer> setSizes(int h) {
+        Set<Integer> validSizes = new LinkedHashSet<>(2);
+        int n = (int) Math.pow(2, h);
+        validSizes.add((2 * n - 2) / h);
 
         if ((2 * n - 2) % h != 0) {
             validSizes.add((2 * n - 2) / h + 1);
         }
-        return validSizes;
+        return validSizes;
+    }
+}
+
+
+//-----------------------------------------Color Map Splitting class------------------------------------------------------------
+//LongColorSplitting writing the color of every node into a NodeColorMap (the node-indexed layout) instead of appending it to its
+//color class, so "which server holds node x" is one lookup. The map decides the storage (heap, direct memory or a memory-mapped
+//file) and the cell size (8 bits, or fewer for small h, see NodeColorMap.bitsFor).
+//The static methods convert between this layout and the per-color layout in parallel.
+class ColorMapSplitting {
+
+    private final LongColorSplitting splitting = new LongColorSplitting();
+
+    //Given a feasible sequence 𝑐 = [𝑐1, . . . , 𝑐ℎ] sorted in non-decreasing order, writes a 𝑐-coloring of 𝑇 (ℎ) into map
+    //Color i is the i-th entry of c.
+    public NodeColorMap ColorSplitting(int h, long[] c, NodeColorMap map) {
+        if (h < 1 || h > LongColorSplitting.MAX_HEIGHT || c.length != h || map.getHeight() != h) {
+            System.out.println("Warning! h should be between 1 and " + LongColorSplitting.MAX_HEIGHT
+                    + ", c should have h entries and the map should be of T(h)");
+            return null;
+        }
+        try {
+            splitting.ColorSplitting(h, c, (q, size) -> new Cells(map, q));
+        } catch (IOException e) {
+            //Cells do no I/O of their own
+            throw new UncheckedIOException(e);
+        }
+        return map;
+    }
+
+    //Color q of a map: adding a node writes q into its cell. The map keeps no order of the nodes of a color, so there is no getNode.
+    private static final class Cells implements ColorClass {
+        private final NodeColorMap map;
+        private final int q;
+        private long count;
+
+        Cells(NodeColorMap map, int q) {
+            this.map = map;
+            this.q = q;
+        }
+
+        public void addNode(long root) {
+            map.set(root, q);
+            count++;
+        }
+
+        public long getNode(long index) {
+            throw new UnsupportedOperationException("The nodes of a color map are found by ColorMapSplitting.toNodesSets");
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    //Per-color layout -> node-indexed layout; false (with an error printed) if there is not one class per depth of the map or a
+    //node ID is out of range
+    public static boolean toMap(NodesSet[] S, NodeColorMap map, ForkJoinPool pool) {
+        return toMap(LinearCheckCSA.of(S), map, pool);
+    }
+
+    public static boolean toMap(ColorClass[] S, NodeColorMap map, ForkJoinPool pool) {
+        return toMap(LinearCheckCSA.of(S), map, pool);
+    }
+
+    private static boolean toMap(LinearCheckCSA.Classes S, NodeColorMap map, ForkJoinPool pool) {
+        if (S.count() != map.getHeight()) {
+            System.out.println("ERROR: " + S.count() + " classes for a map of T(" + map.getHeight() + ")");
+            return false;
+        }
+        return LinearCheckCSA.fill(pool, S, map);
+    }
+
+    //Node-indexed layout -> per-color layout; null for h > 30, whose node IDs do not fit in a NodesSet.
+    //Every class comes out in increasing node-ID order.
+    public static NodesSet[] toNodesSets(NodeColorMap map, ForkJoinPool pool) {
+        int h = map.getHeight();
+        if (h > BatchRunner.NODES_SET_MAX_HEIGHT) {
+            System.out.println("Warning! A map of T(" + h + ") has node IDs beyond int; use toOffHeap");
+            return null;
+        }
+        long[][] offsets = offsets(map, pool);
+        NodesSet[] S = new NodesSet[h];
+        for (int q = 0; q < h; q++) {
+            S[q] = new NodesSet(LongColorSplitting.colorLabel(q).charAt(0), (int) offsets[offsets.length - 1][q]);
+            S[q].setSize((int) offsets[offsets.length - 1][q]);
+        }
+        scatter(map, offsets, pool, (q, index, node) -> S[q].setNode((int) index, (int) node));
+        return S;
+    }
+
+    //Node-indexed layout -> OffHeapNodesSets in direct memory, or memory-mapped files color<label>.bin when directory is not null
+    public static OffHeapNodesSet[] toOffHeap(NodeColorMap map, File directory, ForkJoinPool pool) throws IOException {
+        int h = map.getHeight();
+        long[][] offsets = offsets(map, pool);
+        OffHeapNodesSet[] S = new OffHeapNodesSet[h];
+        for (int q = 0; q < h; q++) {
+            long size = offsets[offsets.length - 1][q];
+            S[q] = directory == null ? new OffHeapNodesSet(q, size)
+                    : new OffHeapNodesSet(q, size, new File(directory, "color" + LongColorSplitting.colorLabel(q) + ".bin"));
+            S[q].allocate();
+            S[q].skip(size);
+        }
+        scatter(map, offsets, pool, (q, index, node) -> S[q].setNode(index, node));
+        return S;
+    }
+
+    //Number of nodes of every color (entry h: nodes without a color), counted in parallel
+    public static long[] counts(NodeColorMap map, ForkJoinPool pool) {
+        long[][] offsets = offsets(map, pool);
+        return offsets[offsets.length - 1];
+    }
+
+    private interface Put {
+        void put(int q, long index, long node);
+    }
+
+    //Nodes 2 .. 2^(h+1) - 1 in blocks of 2^16 nodes or more (at most 2^16 blocks)
+    private static long blockNodes(int h) {
+        return Math.max(LinearCheckCSA.BLOCK, LongColorSplitting.treeNodes(h) >>> 16);
+    }
+
+    //offsets[b][q]: nodes of color q before block b (row "blocks" holds the totals; column h counts uncolored nodes)
+    private static long[][] offsets(NodeColorMap map, ForkJoinPool pool) {
+        int h = map.getHeight();
+        long n = LongColorSplitting.treeNodes(h), block = blockNodes(h);
+        int blocks = (int) ((n + block - 1) / block);
+        long[][] offsets = new long[blocks + 1][h + 1];
+
+        LinearCheckCSA.forRange(pool, blocks, 1, (from, to) -> {
+            for (long b = from; b < to; b++) {
+                long[] count = offsets[(int) b + 1];
+                long end = Math.min(n, (b + 1) * block) + 2;
+                for (long node = b * block + 2; node < end; node++) {
+                    int q = map.get(node);
+                    count[q < 0 ? h : q]++;
+                }
+            }
+            return true;
+        });
+        for (int b = 1; b <= blocks; b++) {
+            for (int q = 0; q <= h; q++) {
+                offsets[b][q] += offsets[b - 1][q];
+            }
+        }
+        return offsets;
+    }
+
+    //Every block writes its nodes from its own offsets, so the classes are filled in increasing ID order
+    private static void scatter(NodeColorMap map, long[][] offsets, ForkJoinPool pool, Put put) {
+        int h = map.getHeight();
+        long n = LongColorSplitting.treeNodes(h), block = blockNodes(h);
+        LinearCheckCSA.forRange(pool, offsets.length - 1, 1, (from, to) -> {
+            for (long b = from; b < to; b++) {
+                long[] next = offsets[(int) b].clone();
+                long end = Math.min(n, (b + 1) * block) + 2;
+                for (long node = b * block + 2; node < end; node++) {
+                    int q = map.get(node);
+                    if (q >= 0) put.put(q, next[q]++, node);
+                }
+            }
+            return true;
+        });
+    }
+}
+
+
+//-----------------------------------------Node Color Map class---------------------------------------------------------------------
+//The inverse view of a coloring: the color index of every node ID of T(h), stored as color + 1 (0 means "no color yet") in cells
+//of 1, 2, 4 or 8 bits, kept in chunks of 2^30 bytes so that trees beyond T(30) fit. The chunks are byte arrays on the heap,
+//direct memory or a memory-mapped file. Different nodes can be written by different threads when cells are 8 bits; smaller cells
+//share a byte, so nodes of the same byte must then be written by one thread.
+class NodeColorMap {
+
+    static final int CHUNK_SHIFT = 30;
+    static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    private final int h;
+    private final int bits;
+    private final int bitsShift;
+    private final int mask;
+    //heap chunks, or null when the chunks are buffers
+    private final byte[][] chunks;
+    private final ByteBuffer[] buffers;
+    //null unless memory-mapped
+    private final FileChannel channel;
+    //heap chunks with one byte per node: the common case, indexed directly
+    private final boolean byteCells;
+
+    //Node IDs 0 .. 2^(h+1) - 1, one byte per node on the heap
+    public NodeColorMap(int h) {
+        this(h, 8, false);
+    }
+
+    //bits per node (1, 2, 4 or 8; see bitsFor), on the heap or in direct memory
+    public NodeColorMap(int h, int bits, boolean direct) {
+        checkCells(h, bits);
+        this.h = h;
+        this.bits = bits;
+        this.bitsShift = Integer.numberOfTrailingZeros(bits);
+        this.mask = (1 << bits) - 1;
+        this.channel = null;
+        long bytes = bytes(h, bits);
+        int n = (int) ((bytes + CHUNK_MASK) >>> CHUNK_SHIFT);
+        chunks = direct ? null : new byte[n][];
+        buffers = direct ? new ByteBuffer[n] : null;
+        for (int k = 0; k < n; k++) {
+            int size = (int) Math.min(1L << CHUNK_SHIFT, bytes - ((long) k << CHUNK_SHIFT));
+            if (direct) buffers[k] = ByteBuffer.allocateDirect(size);
+            else chunks[k] = new byte[size];
+        }
+        byteCells = !direct && bits == 8;
+    }
+
+    //bits per node in a memory-mapped file; the content of an existing file of the same size is kept
+    public NodeColorMap(int h, int bits, File file) throws IOException {
+        checkCells(h, bits);
+        this.h = h;
+        this.bits = bits;
+        this.bitsShift = Integer.numberOfTrailingZeros(bits);
+        this.mask = (1 << bits) - 1;
+        long bytes = bytes(h, bits);
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(bytes);
+        chunks = null;
+        buffers = new ByteBuffer[(int) ((bytes + CHUNK_MASK) >>> CHUNK_SHIFT)];
+        for (int k = 0; k < buffers.length; k++) {
+            long size = Math.min(1L << CHUNK_SHIFT, bytes - ((long) k << CHUNK_SHIFT));
+            buffers[k] = channel.map(FileChannel.MapMode.READ_WRITE, (long) k << CHUNK_SHIFT, size);
+        }
+        byteCells = false;
+    }
+
+    //A cell must divide a byte and hold the colors 0 .. h-1 and "no color"
+    private static void checkCells(int h, int bits) {
+        if (h < 1 || h > LongColorSplitting.MAX_HEIGHT) {
+            throw new IllegalArgumentException("h should be between 1 and " + LongColorSplitting.MAX_HEIGHT + ": " + h);
+        }
+        if (bits != 1 && bits != 2 && bits != 4 && bits != 8 || bits < bitsFor(h)) {
+            throw new IllegalArgumentException("Cells of 1, 2, 4 or 8 bits and at least " + bitsFor(h) + " bits for T(" + h + "), not " + bits);
+        }
+    }
+
+    //The smallest cell that holds the colors 0 .. h-1 and "no color"
+    public static int bitsFor(int h) {
+        int bits = 1;
+        while ((1 << bits) <= h) bits <<= 1;
+        return bits;
+    }
+
+    private static long bytes(int h, int bits) {
+        return ((1L << (h + 1)) * bits + 7) >>> 3;
+    }
+
+    public int getHeight() {
+        return h;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    public long getBytes() {
+        return bytes(h, bits);
+    }
+
+    //Color index of node, or -1 when it has no color
+    public int get(long node) {
+        if (byteCells) return chunks[(int) (node >>> CHUNK_SHIFT)][(int) (node & CHUNK_MASK)] - 1;
+        long bit = node << bitsShift;
+        int k = (int) (bit >>> (CHUNK_SHIFT + 3)), i = (int) ((bit >>> 3) & CHUNK_MASK);
+        int b = (chunks != null ? chunks[k][i] : buffers[k].get(i)) & 0xFF;
+        return bits == 8 ? b - 1 : ((b >>> (bit & 7)) & mask) - 1;
+    }
+
+    public void set(long node, int color) {
+        if (byteCells) {
+            chunks[(int) (node >>> CHUNK_SHIFT)][(int) (node & CHUNK_MASK)] = (byte) (color + 1);
+            return;
+        }
+        long bit = node << bitsShift;
+        int k = (int) (bit >>> (CHUNK_SHIFT + 3)), i = (int) ((bit >>> 3) & CHUNK_MASK);
+        int b = color + 1;
+        if (bits != 8) {
+            int shift = (int) (bit & 7);
+            b = ((chunks != null ? chunks[k][i] : buffers[k].get(i)) & ~(mask << shift)) | (b << shift);
+        }
+        if (chunks != null) chunks[k][i] = (byte) b;
+        else buffers[k].put(i, (byte) b);
+    }
+
+    //Write the pages of a memory-mapped map back to the file now
+    public void force() {
+        if (channel == null) return;
+        for (ByteBuffer buffer : buffers) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+
+    public void close() throws IOException {
+        if (chunks != null) Arrays.fill(chunks, null);
+        else Arrays.fill(buffers, null);
+        if (channel != null) channel.close();
+    }
+}
+
+
+//-----------------------------------------Linear CHECK the CSA outputs class-------------------------------------------------------
+//The checks of CheckCSA in O(n) total work, run in parallel, for any h up to T(62) memory permitting and any feasible c:
+// 1. every ID is inside the range 2 .. 2^(h+1) - 1, and class q has exactly c[q] nodes
+// 2. every node of the tree except the root has a color; together with 1 (the sizes add up to 2^(h+1) - 2) this means
+//    that every node appears exactly once
+// 3. Ancestral Property: walking top-down, the colors used on the path from the root to a node are kept in a bit mask,
+//    and a node may not reuse a color of the mask of its parent
+//The classes are first copied into a NodeColorMap (one byte per node).
+class LinearCheckCSA {
+
+    //Blocks of work handed to one fork/join task
+    static final int BLOCK = 1 << 16;
+    //Subtrees of height <= CUTOFF are walked sequentially
+    static final int CUTOFF = 16;
+
+    private final ForkJoinPool pool;
+
+    public LinearCheckCSA() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public LinearCheckCSA(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    //Read access to color classes of any storage
+    interface Classes {
+        int count();
+
+        long size(int q);
+
+        long get(int q, long i);
+    }
+
+    static Classes of(NodesSet[] S) {
+        return new Classes() {
+            public int count() { return S.length; }
+            public long size(int q) { return S[q].getSize(); }
+            public long get(int q, long i) { return S[q].getAddNodes()[(int) i]; }
+        };
+    }
+
+    static Classes of(ColorClass[] S) {
+        return new Classes() {
+            public int count() { return S.length; }
+            public long size(int q) { return S[q].getCount(); }
+            public long get(int q, long i) { return S[q].getNode(i); }
+        };
+    }
+
+    //All checks for the node-indexed layout: color q has c[q] nodes, no node is uncolored, Ancestral Property
+    public boolean Validate(NodeColorMap map, long[] c) {
+        int h = map.getHeight();
+        if (c.length != h) {
+            System.out.println("The size of c is not " + h);
+            return false;
+        }
+        long[] counts = ColorMapSplitting.counts(map, pool);
+        if (counts[h] != 0) {
+            System.out.println("ERROR: " + counts[h] + " nodes have no color");
+            return false;
+        }
+        for (int q = 0; q < h; q++) {
+            if (counts[q] != c[q]) {
+                System.out.println("ERROR: Set " + q + " has " + counts[q] + " nodes instead of " + c[q]);
+                return false;
+            }
+        }
+        return isAncestral(map);
+    }
+
+    //All checks, where class q must have c[q] nodes
+    public boolean Validate(NodesSet[] S, int h, long[] c) {
+        return validate(of(S), h, c);
+    }
+
+    public boolean Validate(ColorClass[] S, int h, long[] c) {
+        return validate(of(S), h, c);
+    }
+
+    //Checks 1 (range only) and 2 of CheckCSA.IsValidAllNodeID
+    public boolean IsValidAllNodeID(NodesSet[] S, int h) {
+        NodeColorMap map = fill(of(S), h);
+        return map != null && isCovered(map, of(S), h);
+    }
+
+    //Check if no ancestor-descendant pair appears in any set
+    public boolean IsRelationship(NodesSet[] S, int h) {
+        NodeColorMap map = fill(of(S), h);
+        return map != null && isAncestral(map);
+    }
+
+    //Check if set q has c[q] nodes
+    public boolean IsValidSizes(NodesSet[] S, long[] c) {
+        return hasSizes(of(S), c);
+    }
+
+    private boolean validate(Classes S, int h, long[] c) {
+        if (!hasSizes(S, c)) return false;
+        NodeColorMap map = fill(S, h);
+        return map != null && isCovered(map, S, h) && isAncestral(map);
+    }
+
+    private static boolean hasSizes(Classes S, long[] c) {
+        if (S.count() != c.length) {
+            System.out.println("The size of S is not " + c.length);
+            return false;
+        }
+        for (int q = 0; q < c.length; q++) {
+            if (S.size(q) != c[q]) {
+                System.out.println("ERROR: Set " + q + " has " + S.size(q) + " nodes instead of " + c[q]);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Copy every class into a node-indexed map, in parallel blocks; null if an ID is out of range
+    private NodeColorMap fill(Classes S, int h) {
+        if (S.count() != h || h < 1 || h > LongColorSplitting.MAX_HEIGHT) {
+            System.out.println("The size of S is not " + h);
+            return null;
+        }
+        NodeColorMap map = new NodeColorMap(h);
+        return fill(pool, S, map) ? map : null;
+    }
+
+    //Copy every class into map; in parallel blocks when every node has its own byte
+    static boolean fill(ForkJoinPool pool, Classes S, NodeColorMap map) {
+        int h = S.count();
+        long maxNode = LongColorSplitting.treeNodes(map.getHeight()) + 1;
+        long[] start = new long[h + 1];
+        for (int q = 0; q < h; q++) {
+            start[q + 1] = start[q] + S.size(q);
+        }
+
+        Range body = (from, to) -> {
+            int q = 0;
+            while (start[q + 1] <= from) q++;
+            for (long k = from; k < to; k++) {
+                while (start[q + 1] <= k) q++;
+                long node = S.get(q, k - start[q]);
+                if (node < 2 || node > maxNode) {
+                    System.out.println("ERROR: Nodes are out of range: " + node);
+                    return false;
+                }
+                map.set(node, q);
+            }
+            return true;
+        };
+        return map.getBits() == 8 ? forRange(pool, start[h], BLOCK, body) : body.run(0, start[h]);
+    }
+
+    private boolean isCovered(NodeColorMap map, Classes S, int h) {
+        long total = 0;
+        for (int q = 0; q < S.count(); q++) {
+            total += S.size(q);
+        }
+        if (total != LongColorSplitting.treeNodes(h)) {
+            System.out.println("ERROR: The total number of tree nodes is not correct");
+            return false;
+        }
+        //With the right total, a node without color means that another one was listed twice
+        boolean ok = forRange(LongColorSplitting.treeNodes(h), (from, to) -> {
+            for (long node = from + 2; node < to + 2; node++) {
+                if (map.get(node) < 0) {
+                    System.out.println("ERROR: Overlapping sets (node " + node + " has no color)");
+                    return false;
+                }
+            }
+            return true;
+        });
+        return ok;
+    }
+
+    private boolean isAncestral(NodeColorMap map) {
+        return pool.invoke(new AncestralTask(map, 1, map.getHeight(), 0L));
+    }
+
+    interface Range {
+        boolean run(long from, long to);
+    }
+
+    private boolean forRange(long n, Range body) {
+        return forRange(pool, n, BLOCK, body);
+    }
+
+    //body over 0 .. n-1 in pieces of at most grain; false if any piece returns false
+    static boolean forRange(ForkJoinPool pool, long n, long grain, Range body) {
+        return pool.invoke(new RangeTask(0, n, grain, body));
+    }
+
+    //fork/join tasks are never serialized
+    @SuppressWarnings("serial")
+    private static class RangeTask extends RecursiveTask<Boolean> {
+        private final long from, to, grain;
+        private final Range body;
+
+        RangeTask(long from, long to, long grain, Range body) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.body = body;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (to - from <= grain) return body.run(from, to);
+            long mid = (from + to) >>> 1;
+            RangeTask left = new RangeTask(from, mid, grain, body);
+            left.fork();
+            boolean right = new RangeTask(mid, to, grain, body).compute();
+            return left.join() && right;
+        }
+    }
+
+    //mask has bit q set when color q is used on the path from the root down to R (R included)
+    @SuppressWarnings("serial")
+    private static class AncestralTask extends RecursiveTask<Boolean> {
+        private final NodeColorMap map;
+        private final long R;
+        private final int h;
+        private final long mask;
+
+        AncestralTask(NodeColorMap map, long R, int h, long mask) {
+            this.map = map;
+            this.R = R;
+            this.h = h;
+            this.mask = mask;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (h <= CUTOFF) return walk(R, h, mask);
+            long maskA = child(2 * R, mask), maskB = child(2 * R + 1, mask);
+            if (maskA < 0 || maskB < 0) return false;
+            AncestralTask left = new AncestralTask(map, 2 * R, h - 1, maskA);
+            left.fork();
+            boolean right = new AncestralTask(map, 2 * R + 1, h - 1, maskB).compute();
+            return left.join() && right;
+        }
+
+        private boolean walk(long R, int h, long mask) {
+            if (h == 0) return true;
+            long maskA = child(2 * R, mask), maskB = child(2 * R + 1, mask);
+            return maskA >= 0 && maskB >= 0 && walk(2 * R, h - 1, maskA) && walk(2 * R + 1, h - 1, maskB);
+        }
+
+        //mask of the path down to node, or -1 if its color is already on the path; nodes without color are skipped
+        private long child(long node, long mask) {
+            if (map.get(node) < 0) return mask;
+            long bit = 1L << map.get(node);
+            if ((mask & bit) != 0) {
+                System.out.println("ERROR: Set " + map.get(node) + " contains an ancestor-descendant pair (node " + node + ")");
+                return -1;
+            }
+            return mask | bit;
+        }
+    }
+}
+
+
+//-----------------------------------------Out-of-core CHECK of exported files-----------------------------------------------------
+//The checks of LinearCheckCSA for a coloring that only exists as an exported file, without loading its classes:
+//  - testh.txt of Data.SaveTreeTXT (h on the first line, then one line of node IDs per color),
+//  - testh.csac of ColoringFileWriter (the header holds c and the class sizes),
+//  - a directory of color<label>.bin files of little-endian longs (files:<dir>, mmap:<dir> and ShardedColorSplitting).
+//The file is memory-mapped in CHUNK byte pieces that are decoded in parallel, and every node goes straight into a NodeColorMap
+//of NodeColorMap.bitsFor(h) bits per node. Cells below a byte share their bytes, so those maps (h < 16, at most 32 KB) are filled by
+//one thread. The map is a memory-mapped file in the scratch directory when one is given, and by default also when it would take
+//more than half of the maximum heap (then in java.io.tmpdir), so the heap use does not depend on the size of the file. Every ID must be in range while the file is read; afterwards the class sizes must be those of c and
+//LinearCheckCSA.Validate checks on the map that every node has a color and the Ancestral Property. A node listed twice leaves
+//another node without a color, so it is caught as well.
+class FileCheckCSA {
+
+    //Bytes of the file decoded by one fork/join task
+    static final long CHUNK = 1L << 26;
+    //Longest node ID of a text file: 2^63 has 19 digits
+    private static final int MAX_DIGITS = 19;
+
+    private final ForkJoinPool pool;
+    private final File scratch;
+    //the scratch file of the map in use
+    private File mapFile;
+    private long bytes, nanos;
+
+    public FileCheckCSA() {
+        this(ForkJoinPool.commonPool(), null);
+    }
+
+    //scratch: directory of the memory-mapped NodeColorMap, or null to keep it on the heap
+    public FileCheckCSA(ForkJoinPool pool, File scratch) {
+        this.pool = pool;
+        this.scratch = scratch;
+    }
+
+    //All checks; the sizes are those of the file (header of a .csac file, lines of a .txt file, lengths of .bin files)
+    public boolean Validate(File file) throws IOException {
+        return Validate(file, null);
+    }
+
+    //All checks, where class q must have c[q] nodes
+    public boolean Validate(File file, long[] c) throws IOException {
+        long start = System.nanoTime();
+        bytes = 0;
+        try {
+            if (file.isDirectory()) return validateClassFiles(file, c);
+            if (isColoringFile(file)) return validateBIN(file, c);
+            return validateTXT(file, c);
+        } finally {
+            nanos = System.nanoTime() - start;
+        }
+    }
+
+    //Bytes read and time taken by the last Validate
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    private static boolean isColoringFile(File file) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) ;
+            return !magic.hasRemaining() && magic.getInt(0) == ColoringFileWriter.MAGIC;
+        }
+    }
+
+    //Text format: line 0 is h, line q + 1 holds the nodes of color q. The chunks cut lines anywhere, so the newlines of every chunk
+    //are counted first (a byte compare per byte) to know the line, and so the color, at which each chunk starts.
+    private boolean validateTXT(File file, long[] c) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            long size = channel.size();
+            bytes = size;
+            int h = readHeight(channel);
+            if (h < 1 || h > LongColorSplitting.MAX_HEIGHT) {
+                System.out.println("ERROR: The first line of " + file + " is not a height");
+                return false;
+            }
+            int chunks = (int) ((size + CHUNK - 1) / CHUNK);
+            long[] lines = new long[chunks + 1];
+            LinearCheckCSA.forRange(pool, chunks, 1, (from, to) -> {
+                for (int k = (int) from; k < to; k++) {
+                    MappedByteBuffer in = map(channel, k * CHUNK, Math.min(CHUNK, size - k * CHUNK));
+                    long n = 0;
+                    for (int i = 0; i < in.limit(); i++) {
+                        if (in.get(i) == '\n') n++;
+                    }
+                    lines[k + 1] = n;
+                }
+                return true;
+            });
+            for (int k = 0; k < chunks; k++) {
+                lines[k + 1] += lines[k];
+            }
+
+            NodeColorMap map = newMap(h);
+            try {
+                LongAdder[] counts = adders(h);
+                long maxNode = LongColorSplitting.treeNodes(h) + 1;
+                boolean ok = fill(map, chunks, 1, (from, to) -> {
+                    for (int k = (int) from; k < to; k++) {
+                        //one byte before the chunk tells if its first digit starts a number, the bytes after it end its last number
+                        long begin = Math.max(0, k * CHUNK - 1), end = Math.min(size, (k + 1) * CHUNK);
+                        MappedByteBuffer in = map(channel, begin, Math.min(size, end + MAX_DIGITS + 1) - begin);
+                        long line = lines[k];
+                        long[] count = new long[h];
+                        int i = (int) (k * CHUNK - begin), last = (int) (end - begin);
+                        while (i < last) {
+                            byte b = in.get(i);
+                            if (b == '\n') {
+                                line++;
+                                i++;
+                                continue;
+                            }
+                            if (b < '0' || b > '9') {
+                                if (b != ' ' && b != '\r' && b != '\t') {
+                                    System.out.println("ERROR: Unexpected character '" + (char) b + "' in " + file);
+                                    return false;
+                                }
+                                i++;
+                                continue;
+                            }
+                            boolean starts = i == 0 || in.get(i - 1) < '0' || in.get(i - 1) > '9';
+                            long node = 0;
+                            int digits = 0;
+                            for (; i < in.limit() && in.get(i) >= '0' && in.get(i) <= '9'; i++, digits++) {
+                                node = 10 * node + (in.get(i) - '0');
+                            }
+                            //line 0 is the height, and a number cut by the start of the chunk belongs to the chunk before
+                            if (!starts || line == 0) continue;
+                            if (line > h) {
+                                System.out.println("ERROR: " + file + " has more than " + h + " sets");
+                                return false;
+                            }
+                            if (digits > MAX_DIGITS || node < 2 || node > maxNode) {
+                                System.out.println("ERROR: Nodes are out of range: " + node);
+                                return false;
+                            }
+                            map.set(node, (int) line - 1);
+                            count[(int) line - 1]++;
+                        }
+                        add(counts, count);
+                    }
+                    return true;
+                });
+                return ok && check(map, sum(counts), c);
+            } finally {
+                release(map);
+            }
+        }
+    }
+
+    //Binary format: the blocks of the block index are decoded independently, about CHUNK / 2 nodes per task
+    private boolean validateBIN(File file, long[] c) throws IOException {
+        try (ColoringFileReader in = new ColoringFileReader(file)) {
+            bytes = file.length();
+            int h = in.getHeight();
+            long[] header = in.getSequence();
+            for (int q = 0; q < h; q++) {
+                if (in.getCount(q) != header[q]) {
+                    System.out.println("ERROR: Set " + q + " has " + in.getCount(q) + " nodes instead of " + header[q]);
+                    return false;
+                }
+            }
+            if (c != null && !Arrays.equals(c, header)) {
+                System.out.println("ERROR: The sequence of " + file + " is not " + Arrays.toString(c));
+                return false;
+            }
+
+            NodeColorMap map = newMap(h);
+            try {
+                long maxNode = LongColorSplitting.treeNodes(h) + 1;
+                long grain = Math.max(1, CHUNK / 2 / ColoringFileWriter.BLOCK);
+                for (int q = 0; q < h; q++) {
+                    int color = q;
+                    boolean ok = fill(map, in.getBlocks(q), grain, (from, to) -> in.scan(color, from, to, node -> {
+                        if (node < 2 || node > maxNode) {
+                            System.out.println("ERROR: Nodes are out of range: " + node);
+                            return false;
+                        }
+                        map.set(node, color);
+                        return true;
+                    }));
+                    if (!ok) return false;
+                }
+                return check(map, header, header);
+            } finally {
+                release(map);
+            }
+        }
+    }
+
+    //Class files: color<label>.bin for q = 0, 1, ... as long as the files exist; ranges of CHUNK bytes of every file in parallel
+    private boolean validateClassFiles(File directory, long[] c) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (int q = 0; new File(directory, "color" + LongColorSplitting.colorLabel(q) + ".bin").isFile(); q++) {
+            files.add(new File(directory, "color" + LongColorSplitting.colorLabel(q) + ".bin"));
+        }
+        int h = files.size();
+        if (h < 1 || h > LongColorSplitting.MAX_HEIGHT) {
+            System.out.println("ERROR: " + directory + " has no color files");
+            return false;
+        }
+
+        long[] sizes = new long[h];
+        for (int q = 0; q < h; q++) {
+            long size = files.get(q).length();
+            if (size % Long.BYTES != 0) {
+                System.out.println("ERROR: " + files.get(q) + " has " + size + " bytes, which is not a whole number of node IDs");
+                return false;
+            }
+            sizes[q] = size / Long.BYTES;
+        }
+
+        NodeColorMap map = newMap(h);
+        try {
+            long maxNode = LongColorSplitting.treeNodes(h) + 1;
+            for (int q = 0; q < h; q++) {
+                int color = q;
+                try (FileChannel channel = new RandomAccessFile(files.get(q), "r").getChannel()) {
+                    long size = channel.size();
+                    bytes += size;
+                    if (size != sizes[q] * Long.BYTES) {
+                        System.out.println("ERROR: " + files.get(q) + " changed while it was checked");
+                        return false;
+                    }
+                    boolean ok = fill(map, (size + CHUNK - 1) / CHUNK, 1, (from, to) -> {
+                        for (long k = from; k < to; k++) {
+                            MappedByteBuffer in = map(channel, k * CHUNK, Math.min(CHUNK, size - k * CHUNK));
+                            in.order(ByteOrder.LITTLE_ENDIAN);
+                            for (int i = 0; i < in.limit(); i += Long.BYTES) {
+                                long node = in.getLong(i);
+                                if (node < 2 || node > maxNode) {
+                                    System.out.println("ERROR: Nodes are out of range: " + node);
+                                    return false;
+                                }
+                                map.set(node, color);
+                            }
+                        }
+                        return true;
+                    });
+                    if (!ok) return false;
+                }
+            }
+            return check(map, sizes, c);
+        } finally {
+            release(map);
+        }
+    }
+
+    //sizes: nodes read per class; c: the expected sizes, or null to take those read
+    private boolean check(NodeColorMap map, long[] sizes, long[] c) {
+        int h = map.getHeight();
+        if (c != null && c.length != h) {
+            System.out.println("ERROR: c has " + c.length + " entries instead of " + h);
+            return false;
+        }
+        long total = 0;
+        for (int q = 0; q < h; q++) {
+            if (c != null && sizes[q] != c[q]) {
+                System.out.println("ERROR: Set " + q + " has " + sizes[q] + " nodes instead of " + c[q]);
+                return false;
+            }
+            total += sizes[q];
+        }
+        if (total != LongColorSplitting.treeNodes(h)) {
+            System.out.println("ERROR: The sets have " + total + " nodes instead of " + LongColorSplitting.treeNodes(h));
+            return false;
+        }
+        return new LinearCheckCSA(pool).Validate(map, sizes);
+    }
+
+    //A map of bitsFor(h) bits per node: in the scratch directory if there is one, else on the heap unless it needs more than half
+    //of the maximum heap
+    private NodeColorMap newMap(int h) throws IOException {
+        int bits = NodeColorMap.bitsFor(h);
+        File directory = scratch;
+        //2^(h+1) cells of bits / 8 bytes
+        if (directory == null && Math.scalb((double) bits, h - 2) > Runtime.getRuntime().maxMemory() / 2) {
+            directory = new File(System.getProperty("java.io.tmpdir"));
+        }
+        if (directory == null) return new NodeColorMap(h, bits, false);
+        mapFile = File.createTempFile("colormap", ".bin", directory);
+        return new NodeColorMap(h, bits, mapFile);
+    }
+
+    private void release(NodeColorMap map) throws IOException {
+        map.close();
+        if (mapFile != null && !mapFile.delete()) mapFile.deleteOnExit();
+        mapFile = null;
+    }
+
+    //Parallel ranges for a map of byte cells; cells that share a byte are set by one thread
+    private boolean fill(NodeColorMap map, long n, long grain, LinearCheckCSA.Range body) {
+        return map.getBits() == 8 ? LinearCheckCSA.forRange(pool, n, grain, body) : body.run(0, n);
+    }
+
+    //The first line of a text file
+    private static int readHeight(FileChannel channel) throws IOException {
+        MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 64));
+        int h = 0, i = 0;
+        while (i < in.limit() && (in.get(i) == ' ' || in.get(i) == '\r')) i++;
+        int first = i;
+        for (; i < in.limit() && in.get(i) >= '0' && in.get(i) <= '9' && h <= LongColorSplitting.MAX_HEIGHT; i++) {
+            h = 10 * h + (in.get(i) - '0');
+        }
+        while (i < in.limit() && (in.get(i) == ' ' || in.get(i) == '\r')) i++;
+        return i > first && i < in.limit() && in.get(i) == '\n' ? h : -1;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long size) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static LongAdder[] adders(int h) {
+        LongAdder[] counts = new LongAdder[h];
+        for (int q = 0; q < h; q++) counts[q] = new LongAdder();
+        return counts;
+    }
+
+    private static void add(LongAdder[] counts, long[] count) {
+        for (int q = 0; q < count.length; q++) counts[q].add(count[q]);
+    }
+
+    private static long[] sum(LongAdder[] counts) {
+        long[] sizes = new long[counts.length];
+        for (int q = 0; q < counts.length; q++) sizes[q] = counts[q].sum();
+        return sizes;
+    }
+}
+
+
+//-----------------------------------------Benchmark class------------------------------------------------------------------------
+//Micro-benchmark suite for the algorithm and its helpers, with warmup iterations and measured iterations per benchmark.
+//For every benchmark it reports the average time per operation, the throughput, the nodes colored (or checked) per second,
+//the bytes allocated per operation by the benchmark thread and the GC collections/time during the measured iterations.
+//Allocation of the worker threads of the parallel engine is not included in the allocation column.
+//Run with: java CSABenchmark [-w warmups] [-i iterations] [-h heights, e.g. 16,18,20]
+class CSABenchmark {
+
+    //Keeps the results alive so that the JIT cannot drop the benchmarked work
+    static volatile long blackhole;
+
+    //One benchmarked operation; returns the number of nodes (or lookups) it processed, 0 if not meaningful
+    interface Op {
+        long run() throws Exception;
+    }
+
+    static final class Result {
+        final String name;
+        final long iterations;
+        final long nanos;
+        final long nodes;
+        final long allocated;
+        final long gcCount;
+        final long gcMillis;
+
+        Result(String name, long iterations, long nanos, long nodes, long allocated, long gcCount, long gcMillis) {
+            this.name = name;
+            this.iterations = iterations;
+            this.nanos = nanos;
+            this.nodes = nodes;
+            this.allocated = allocated;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        double msPerOp() {
+            return nanos / 1e6 / iterations;
+        }
+
+        double opsPerSecond() {
+            return iterations * 1e9 / nanos;
+        }
+
+        double nodesPerSecond() {
+            return nodes * 1e9 / nanos;
+        }
+
+        double bytesPerOp() {
+            return (double) allocated / iterations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-44s %12.3f %12.1f %14.0f %14.0f %6d %8d", name, msPerOp(), opsPerSecond(), nodesPerSecond(),
+                    bytesPerOp(), gcCount, gcMillis);
+        }
+    }
+
+    static String header() {
+        return String.format("%-44s %12s %12s %14s %14s %6s %8s", "Benchmark", "ms/op", "ops/s", "nodes/s", "alloc B/op", "gc", "gc ms");
+    }
+
+    public static Result measure(String name, int warmups, int iterations, Op op) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            blackhole += op.run();
+        }
+
+        long gcCount0 = gcCount(), gcMillis0 = gcMillis(), allocated0 = allocatedBytes();
+        long nodes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            nodes += op.run();
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocated0;
+        blackhole += nodes;
+
+        return new Result(name, iterations, nanos, nodes, allocated, gcCount() - gcCount0, gcMillis() - gcMillis0);
+    }
+
+    //Bytes allocated so far by the current thread (HotSpot), or 0 when the JVM does not report it
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += Math.max(0, gc.getCollectionCount());
+        }
+        return n;
+    }
+
+    static long gcMillis() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += Math.max(0, gc.getCollectionTime());
+        }
+        return n;
+    }
+
+    //A feasible sequence far from balanced: the first h-1 colors as small as (C1) allows, the last one takes the rest
+    public static List<NumColor> skewedColorSequence(byte h) {
+        char[] color = {'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q'
+                , 'R','S', 'T', 'U', 'V','W', 'X', 'Y', 'Z','0', '1', '2', '3', '4', '5', '6', '7','8', '9'};
+        long small = (LongColorSplitting.treeNodes(h - 1) + h - 2) / (h - 1);
+        List<NumColor> c = new ArrayList<>(h);
+        for (int i = 0; i < h - 1; i++) {
+            c.add(new NumColor(color[i], (int) small));
+        }
+        c.add(new NumColor(color[h - 1], (int) (LongColorSplitting.treeNodes(h) - (h - 1) * small)));
+        return c;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int warmups = 3, iterations = 5;
+        byte[] heights = {16, 18, 20};
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-w")) warmups = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-i")) iterations = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-h")) {
+                String[] hs = args[i + 1].split(",");
+                heights = new byte[hs.length];
+                for (int k = 0; k < hs.length; k++) heights[k] = Byte.parseByte(hs[k].trim());
+            }
+        }
+
+        List<Result> results = run(warmups, iterations, heights);
+        System.out.println(header());
+        for (Result r : results) {
+            System.out.println(r);
+        }
+    }
+
+    public static List<Result> run(int w, int n, byte[] heights) throws Exception {
+        List<Result> results = new ArrayList<>();
+        ColorSplittingAlgorithm sequential = new ColorSplittingAlgorithm();
+        PrimitiveColorSplitting primitive = new PrimitiveColorSplitting();
+        TemplateColorSplitting template = new TemplateColorSplitting();
+        ParallelColorSplitting parallel = new ParallelColorSplitting();
+
+        for (byte h : heights) {
+            List<NumColor> balanced = sequential.balancedColorSequence(h);
+            Collections.sort(balanced);
+            List<NumColor> skewed = skewedColorSequence(h);
+            long nodes = LongColorSplitting.treeNodes(h);
+
+            for (String kind : new String[]{"balanced", "skewed"}) {
+                List<NumColor> c = kind.equals("balanced") ? balanced : skewed;
+                results.add(measure("ColorSplitting.sequential " + kind + " h=" + h, w, n, () -> {
+                    sequential.ColorSplitting(h, c);
+                    return nodes;
+                }));
+                results.add(measure("ColorSplitting.primitive " + kind + " h=" + h, w, n, () -> {
+                    primitive.ColorSplitting(h, c);
+                    return nodes;
+                }));
+                results.add(measure("ColorSplitting.template " + kind + " h=" + h, w, n, () -> {
+                    template.ColorSplitting(h, c);
+                    return nodes;
+                }));
+                results.add(measure("ColorSplitting.parallel " + kind + " h=" + h, w, n, () -> {
+                    parallel.ColorSplitting(h, c);
+                    return nodes;
+                }));
+            }
+        }
+        parallel.shutdown();
+
+        //Single split of the root sequence, list and primitive kernels
+        for (byte h : new byte[]{20, 30}) {
+            List<NumColor> c = sequential.balancedColorSequence(h);
+            Collections.sort(c);
+            long[] size = LongColorSplitting.sizes(c);
+            int[] color = ColorClassIterator.identity(h);
+            long[] aSize = new long[h], bSize = new long[h];
+            int[] aColor = new int[h], bColor = new int[h];
+            results.add(measure("FeasibleSplit h=" + h, w, n, () -> {
+                long x = 0;
+                for (int i = 0; i < 10000; i++) x += sequential.FeasibleSplit(h, c).size();
+                blackhole += x;
+                return 0;
+            }));
+            results.add(measure("SplitKernel.FeasibleSplit h=" + h, w, n, () -> {
+                for (int i = 0; i < 10000; i++) SplitKernel.FeasibleSplit(h, size, color, aSize, aColor, bSize, bColor);
+                blackhole += aSize[0];
+                return 0;
+            }));
+            results.add(measure("balancedColorSequence h=" + h, w, n, () -> {
+                long x = 0;
+                for (int i = 0; i < 10000; i++) x += sequential.balancedColorSequence(h).size();
+                blackhole += x;
+                return 0;
+            }));
+            results.add(measure("isFeasible h=" + h, w, n, () -> {
+                long x = 0;
+                for (int i = 0; i < 10000; i++) x += sequential.isFeasible(h, c) ? 1 : 0;
+                blackhole += x;
+                return 0;
+            }));
+        }
+        results.add(measure("feasibleConfList h=5", w, n, () -> {
+            blackhole += sequential.feasibleConfList((byte) 5).size();
+            return 0;
+        }));
+
+        //Validators
+        byte hq = 12;
+        List<NumColor> cq = sequential.balancedColorSequence(hq);
+        Collections.sort(cq);
+        CheckCSA check = new CheckCSA();
+        LinearCheckCSA linear = new LinearCheckCSA();
+        NodesSet[] small = primitive.ColorSplitting(hq, cq);
+        results.add(measure("CheckCSA.IsValidAllNodeID h=" + hq, w, n, () -> check.IsValidAllNodeID(small, hq) ? LongColorSplitting.treeNodes(hq) : 0));
+        results.add(measure("CheckCSA.IsBalancedSets h=" + hq, w, n, () -> check.IsBalancedSets(small, hq) ? LongColorSplitting.treeNodes(hq) : 0));
+        results.add(measure("CheckCSA.IsRelationship h=" + hq, w, n, () -> check.IsRelationship(small) ? LongColorSplitting.treeNodes(hq) : 0));
+        byte hl = heights[heights.length - 1];
+        List<NumColor> cl = sequential.balancedColorSequence(hl);
+        Collections.sort(cl);
+        NodesSet[] large = primitive.ColorSplitting(hl, cl);
+        long[] sizes = LongColorSplitting.sizes(cl);
+        results.add(measure("LinearCheckCSA.Validate h=" + hl, w, n, () -> linear.Validate(large, hl, sizes) ? LongColorSplitting.treeNodes(hl) : 0));
+
+        //Export and reload of the text and binary formats; the file sizes are in the names
+        File directory = Files.createTempDirectory("csa-bench").toFile();
+        File txtFile = new File(directory, "bench" + hl + ".txt");
+        File binFile = new File(directory, "bench" + hl + ".csac");
+        Data txt = new Data("ON", new File(directory, "bench").getPath());
+        txt.SaveTreeTXT(large);
+        Data.WriteTreeBIN(binFile, large);
+        long nodesL = LongColorSplitting.treeNodes(hl);
+        results.add(measure("Data.SaveTreeTXT h=" + hl + ", " + txtFile.length() + " B", w, n, () -> {
+            txt.SaveTreeTXT(large);
+            return nodesL;
+        }));
+        results.add(measure("Data.LoadTreeTXT h=" + hl, w, n, () -> {
+            blackhole += Data.LoadTreeTXT(txtFile).length;
+            return nodesL;
+        }));
+        results.add(measure("Data.WriteTreeBIN h=" + hl + ", " + binFile.length() + " B", w, n, () -> {
+            Data.WriteTreeBIN(binFile, large);
+            return nodesL;
+        }));
+        results.add(measure("Data.LoadTreeBIN h=" + hl, w, n, () -> {
+            blackhole += Data.LoadTreeBIN(binFile).length;
+            return nodesL;
+        }));
+        if (!txtFile.delete() || !binFile.delete() || !directory.delete()) {
+            System.out.println("Warning! Could not remove " + directory);
+        }
+
+        //Lookups without the tree
+        for (int h : new int[]{20, 25, 30}) {
+            long[] c = LongColorSplitting.balancedColorSequence(h);
+            ColorRankSelect rs = new ColorRankSelect(h, c);
+            ColorOracle oracle = new ColorOracle();
+            Random random = new Random(h);
+            results.add(measure("ColorRankSelect.rank+select x10000 h=" + h, w, n, () -> {
+                long x = 0;
+                for (int i = 0; i < 10000; i++) {
+                    long r = rs.rank(2 + (random.nextLong() >>> 1) % LongColorSplitting.treeNodes(h));
+                    x += rs.select(ColorRankSelect.color(r), ColorRankSelect.offset(r));
+                }
+                blackhole += x;
+                return 10000;
+            }));
+            results.add(measure("ColorOracle.colorOf x10000 h=" + h, w, n, () -> {
+                long x = 0;
+                for (int i = 0; i < 10000; i++) x += oracle.colorOf(h, c, 2 + (random.nextLong() >>> 1) % LongColorSplitting.treeNodes(h));
+                blackhole += x;
+                return 10000;
+            }));
+        }
+
+        return results;
+    }
+}
+
+
+//-----------------------------------------Batch Runner class---------------------------------------------------------------------
+//Non-interactive mode of CSA (java CSA <options>). Runs every requested sequence with warmup runs and timed trials and writes one
+//report line per trial (JSON or CSV) with the wall time, peak heap, GC time and nodes per second. Nothing is printed per node.
+//  --heights 20,25,30      balanced sequences of these heights
+//  -c "3 3 8"              an explicit feasible sequence (repeatable)
+//  --engine E              sequential | primitive | template | parallel | sorted | offheap | mmap:<dir> | resume:<dir> | colormap
+//                          | compressed | stream (default primitive; resume:<dir> is mmap:<dir> with checkpoints, see
+//                          CheckpointedColorSplitting; colormap stores the color of every node ID in a NodeColorMap, see
+//                          ColorMapSplitting; compressed builds CompressedNodesSets and reports their heap)
+//  --output O              none | count | hash | compressed | txt:<path prefix> | bin:<path prefix> | files:<dir> | shards:<dir>
+//                          (default none; compressed keeps the classes as CompressedNodesSets and reports their heap; shards:<dir>
+//                          writes the files of files:<dir> with parallel writers and a checksums.txt, see ShardExportSink; the
+//                          writes overlap the generation only with --engine stream, other engines replay their classes after it;
+//                          txt: and bin: write NodesSets and need a NodesSet engine or colormap)
+//  --warmup N --trials N   untimed warmup runs and timed trials per sequence (default 1 and 3)
+//  --report json|csv       report format (default csv); --out <file> writes it to a file instead of the terminal
+//  --check                 validate the last trial of every sequence with LinearCheckCSA (not with --engine stream)
+//  --verify-all h          instead of timing runs, verify every h-feasible sequence in parallel (see VerificationHarness);
+//                          --limit N stops after N sequences
+//  --check-file F          instead of timing runs, check an exported coloring (testh.txt, testh.csac or a directory of color<label>.bin
+//                          files) without loading it (see FileCheckCSA; repeatable); --scratch <dir> keeps its node map in a file,
+//                          which is the default (in java.io.tmpdir) when the map would take more than half of the heap
+//  --serve stdin|<port>    instead of timing runs, answer coloring requests until the input ends (see ColoringService);
+//                          --cache-mb N bounds its result cache (default 1024)
+class BatchRunner {
+
+    String engine = "primitive";
+    String output = "none";
+    String report = "csv";
+    String out = null;
+    int warmup = 1;
+    int trials = 3;
+    boolean check = false;
+    int verifyAll = 0;
+    long limit = -1;
+    String scratch = null;
+    String serve = null;
+    long cacheBytes = ColoringService.DEFAULT_CACHE_BYTES;
+    final List<long[]> sequences = new ArrayList<>();
+    final List<File> checkFiles = new ArrayList<>();
+
+    static final class Run {
+        int h;
+        long[] c;
+        int trial;
+        long wallNanos;
+        long exportNanos;
+        long peakHeap;
+        long gcMillis;
+        long gcCount;
+        String digest = "";
+        String valid = "";
+    }
+
+    public static void main(String[] args) throws IOException {
+        BatchRunner runner = new BatchRunner();
+        if (!runner.parse(args)) {
+            usage();
+            return;
+        }
+        if (runner.verifyAll > 0) {
+            System.out.println("*** Verify all " + runner.verifyAll + "-feasible sequences with engine " + runner.engine);
+            System.out.print(VerificationHarness.run(runner.verifyAll, runner.limit, runner.engine, ForkJoinPool.commonPool()));
+            return;
+        }
+        if (runner.serve != null) {
+            ColoringService service = new ColoringService(runner.cacheBytes);
+            if (runner.serve.equals("stdin")) service.serve(System.in, System.out);
+            else service.listen(Integer.parseInt(runner.serve));
+            return;
+        }
+        if (!runner.checkFiles.isEmpty()) {
+            FileCheckCSA checker = new FileCheckCSA(ForkJoinPool.commonPool(), runner.scratch == null ? null : new File(runner.scratch));
+            for (File file : runner.checkFiles) {
+                boolean valid = checker.Validate(file);
+                System.out.printf("*** Check %s: %s, %d bytes in %.1f ms (%.1f MB/s)%n", file, valid, checker.getBytes(),
+                        checker.getNanos() / 1e6, checker.getBytes() / 1e6 / (checker.getNanos() / 1e9));
+            }
+            return;
+        }
+        if (runner.sequences.isEmpty()) {
+            usage();
+            return;
+        }
+
+        List<Run> runs = new ArrayList<>();
+        for (long[] c : runner.sequences) {
+            runs.addAll(runner.runSequence(c));
+        }
+
+        String text = runner.report.equals("json") ? json(runs, runner) : csv(runs, runner);
+        if (runner.out == null) System.out.print(text);
+        else {
+            try (PrintWriter w = new PrintWriter(new FileWriter(runner.out, false))) {
+                w.print(text);
+            }
+        }
+    }
+
+    static void usage() {
+        System.out.println("Usage: java CSA [--heights 20,25] [-c \"3 3 8\"] [--engine primitive] [--output none]"
+                + " [--warmup 1] [--trials 3] [--report csv|json] [--out file] [--check]");
+        System.out.println("       java CSA --verify-all 6 [--engine primitive] [--limit N]");
+        System.out.println("       java CSA --check-file Database/test8.txt [--scratch dir]");
+        System.out.println("       java CSA --serve stdin|<port> [--cache-mb 1024]");
+    }
+
+    boolean parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("--check")) {
+                check = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                System.out.println("Warning! " + a + " needs a value");
+                return false;
+            }
+            String v = args[++i];
+            switch (a) {
+                case "--heights":
+                    for (String h : v.split(",")) sequences.add(LongColorSplitting.balancedColorSequence(Integer.parseInt(h.trim())));
+                    break;
+                case "-c":
+                    String[] ci = v.trim().split(" +");
+                    long[] c = new long[ci.length];
+                    for (int k = 0; k < c.length; k++) c[k] = Long.parseLong(ci[k]);
+                    Arrays.sort(c);
+                    if (!LongColorSplitting.isFeasible(c.length, c)) {
+                        System.out.println("Warning! c = " + v + " is NOT feasible");
+                        return false;
+                    }
+                    sequences.add(c);
+                    break;
+                case "--engine":
+                    engine = v;
+                    if (!v.equals("stream") && !v.equals("offheap") && !v.startsWith("mmap:") && !v.startsWith("resume:")
+                            && !v.equals("colormap") && !v.equals("compressed") && !NODES_SET_ENGINES.contains(v)) {
+                        System.out.println("Warning! Unknown engine " + v);
+                        return false;
+                    }
+                    break;
+                case "--output":
+                    output = v;
+                    if (!Arrays.asList("none", "count", "hash", "compressed").contains(v) && !v.startsWith("txt:") && !v.startsWith("bin:")
+                            && !v.startsWith("files:") && !v.startsWith("shards:")) {
+                        System.out.println("Warning! Unknown output " + v);
+                        return false;
+                    }
+                    break;
+                case "--warmup": warmup = Integer.parseInt(v); break;
+                case "--trials": trials = Integer.parseInt(v); break;
+                case "--report": report = v; break;
+                case "--out": out = v; break;
+                case "--verify-all": verifyAll = Integer.parseInt(v); break;
+                case "--limit": limit = Long.parseLong(v); break;
+                case "--check-file": checkFiles.add(new File(v)); break;
+                case "--scratch": scratch = v; break;
+                case "--serve": serve = v; break;
+                case "--cache-mb": cacheBytes = Long.parseLong(v) << 20; break;
+                default:
+                    System.out.println("Warning! Unknown option " + a);
+                    return false;
+            }
+        }
+        for (long[] c : sequences) {
+            //colormap needs the NodesSets of ColorMapSplitting.toNodesSets for any output
+            if (c.length > NODES_SET_MAX_HEIGHT && (NODES_SET_ENGINES.contains(engine) || engine.equals("colormap") && !output.equals("none"))) {
+                System.out.println("Warning! The engine " + engine + " stores int node IDs and is limited to h <= " + NODES_SET_MAX_HEIGHT
+                        + "; use offheap, mmap:<dir> or stream for T(" + c.length + ")");
+                return false;
+            }
+        }
+        //Data.SaveTreeTXT and SaveTreeBIN write NodesSets, which only the NodesSet engines and colormap produce
+        if ((output.startsWith("txt:") || output.startsWith("bin:")) && !NODES_SET_ENGINES.contains(engine) && !engine.equals("colormap")) {
+            System.out.println("Warning! --output " + output.substring(0, 4) + " needs NodesSets and cannot be written by the engine "
+                    + engine + "; use files:<dir> or shards:<dir>");
+            return false;
+        }
+        //the streaming engine keeps no classes to validate
+        if (check && engine.equals("stream")) {
+            System.out.println("Warning! --check cannot validate the engine stream; check its files:<dir> output with --check-file");
+            return false;
+        }
+        if (verifyAll > 0 && !VerificationHarness.supports(engine)) {
+            System.out.println("Warning! --verify-all cannot use the engine " + engine + "; it supports "
+                    + String.join(", ", VerificationHarness.ENGINES));
+            return false;
+        }
+        return true;
+    }
+
+    List<Run> runSequence(long[] c) throws IOException {
+        List<Run> runs = new ArrayList<>();
+        for (int i = 0; i < warmup; i++) {
+            runOnce(c, -1, false);
+        }
+        for (int t = 0; t < trials; t++) {
+            runs.add(runOnce(c, t, check && t == trials - 1));
+        }
+        return runs;
+    }
+
+    Run runOnce(long[] c, int trial, boolean validate) throws IOException {
+        int h = c.length;
+        Run run = new Run();
+        run.h = h;
+        run.c = c;
+        run.trial = trial;
+
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heap.add(pool);
+            }
+        }
+        long gcCount0 = CSABenchmark.gcCount(), gcMillis0 = CSABenchmark.gcMillis();
+
+        NodesSet[] NodesSets = null;
+        ColorClass[] classes = null;
+        NodeColorMap map = null;
+        ColoringSink sink = sink(h);
+        Engine nodesSetEngine = NODES_SET_ENGINES.contains(engine) ? engine(engine) : null;
+
+        long start = System.nanoTime();
+        if (engine.equals("stream")) {
+            new StreamingColorSplitting().ColorSplitting(h, c, sink == null ? new CountingSink() : sink);
+        }
+        else if (engine.equals("offheap")) classes = new LongColorSplitting().ColorSplitting(h, c);
+        else if (engine.startsWith("mmap:")) classes = new LongColorSplitting(new File(engine.substring(5))).ColorSplitting(h, c);
+        else if (engine.startsWith("resume:")) classes = new CheckpointedColorSplitting(new File(engine.substring(7))).ColorSplitting(h, c);
+        else if (engine.equals("compressed")) {
+            classes = new LongColorSplitting().ColorSplitting(h, c, (q, size) -> new CompressedNodesSet(q));
+            for (ColorClass s : classes) ((CompressedNodesSet) s).trim();
+        }
+        else if (engine.equals("colormap")) map = new ColorMapSplitting().ColorSplitting(h, c, new NodeColorMap(h));
+        else NodesSets = nodesSetEngine.apply(h, c);
+        long generated = System.nanoTime();
+        if (nodesSetEngine != null) nodesSetEngine.shutdown();
+
+        //Output of the stored classes; the streaming engine wrote its output while generating
+        if (!engine.equals("stream")) {
+            //the per-color layout of a color map is only built when there is an output to write
+            if (map != null && (sink != null || output.startsWith("txt:") || output.startsWith("bin:"))) {
+                NodesSets = ColorMapSplitting.toNodesSets(map, ForkJoinPool.commonPool());
+            }
+            if (NodesSets != null && output.startsWith("txt:")) new Data("ON", output.substring(4)).SaveTreeTXT(NodesSets);
+            else if (NodesSets != null && output.startsWith("bin:")) new Data("ON", output.substring(4)).SaveTreeBIN(NodesSets);
+            else if (sink != null && NodesSets != null) replay(NodesSets, c, sink);
+            else if (sink != null && classes != null) replay(classes, c, sink);
+        }
+        long end = System.nanoTime();
+
+        run.wallNanos = generated - start;
+        run.exportNanos = end - generated;
+        for (MemoryPoolMXBean pool : heap) {
+            run.peakHeap += pool.getPeakUsage().getUsed();
+        }
+        run.gcCount = CSABenchmark.gcCount() - gcCount0;
+        run.gcMillis = CSABenchmark.gcMillis() - gcMillis0;
+        if (sink instanceof HashingSink) run.digest = Long.toHexString(combine(((HashingSink) sink).getHashes()));
+        if (sink instanceof CountingSink) run.digest = Long.toString(((CountingSink) sink).getTotal());
+        if (sink instanceof CompressedSink) run.digest = ((CompressedSink) sink).getBytes() + " bytes";
+        if (sink instanceof ShardExportSink) run.digest = Long.toHexString(combine(((ShardExportSink) sink).getChecksums()));
+        if (sink == null && engine.equals("compressed")) {
+            long bytes = 0;
+            for (ColorClass s : classes) bytes += ((CompressedNodesSet) s).getBytes();
+            run.digest = bytes + " bytes";
+        }
+
+        if (validate) {
+            LinearCheckCSA linear = new LinearCheckCSA();
+            if (NodesSets != null) run.valid = Boolean.toString(linear.Validate(NodesSets, h, c));
+            else if (classes != null) run.valid = Boolean.toString(linear.Validate(classes, h, c));
+            else if (map != null) run.valid = Boolean.toString(linear.Validate(map, c));
+        }
+        if (classes instanceof OffHeapNodesSet[]) {
+            for (OffHeapNodesSet s : (OffHeapNodesSet[]) classes) s.close();
+        }
+        return run;
+    }
+
+    //The engines that fill NodesSets; their int node IDs limit them to T(30)
+    static final List<String> NODES_SET_ENGINES = Arrays.asList("sequential", "primitive", "template", "parallel", "sorted");
+    static final int NODES_SET_MAX_HEIGHT = 30;
+
+    interface Engine {
+        NodesSet[] apply(int h, long[] c);
+
+        //Release the threads of the engine, if any
+        default void shutdown() {
+        }
+    }
+
+    //The engines that fill NodesSets; they take the sequence as a sorted List<NumColor>
+    static Engine engine(String name) {
+        switch (name) {
+            case "sequential": {
+                ColorSplittingAlgorithm e = new ColorSplittingAlgorithm();
+                return (h, c) -> e.ColorSplitting((byte) h, numColors(c));
+            }
+            case "template": {
+                TemplateColorSplitting e = new TemplateColorSplitting();
+                return (h, c) -> e.ColorSplitting((byte) h, numColors(c));
+            }
+            case "parallel": {
+                //the pool is started here, outside the timed runs
+                ParallelColorSplitting e = new ParallelColorSplitting();
+                return new Engine() {
+                    public NodesSet[] apply(int h, long[] c) {
+                        return e.ColorSplitting((byte) h, numColors(c));
+                    }
+
+                    public void shutdown() {
+                        e.shutdown();
+                    }
+                };
+            }
+            case "sorted": {
+                SortedColorSplitting e = new SortedColorSplitting();
+                return (h, c) -> e.ColorSplitting((byte) h, numColors(c));
+            }
+            case "primitive": {
+                PrimitiveColorSplitting e = new PrimitiveColorSplitting();
+                return (h, c) -> e.ColorSplitting((byte) h, numColors(c));
+            }
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + name);
+        }
+    }
+
+    static List<NumColor> numColors(long[] c) {
+        List<NumColor> list = new ArrayList<>(c.length);
+        for (int q = 0; q < c.length; q++) {
+            list.add(new NumColor(LongColorSplitting.colorLabel(q).charAt(0), (int) c[q]));
+        }
+        return list;
+    }
+
+    ColoringSink sink(int h) {
+        if (output.equals("count")) return new CountingSink();
+        if (output.equals("hash")) return new HashingSink();
+        if (output.equals("compressed")) return new CompressedSink();
+        if (output.startsWith("files:")) return new PipelinedSink(new ClassFileSink(new File(output.substring(6))));
+        if (output.startsWith("shards:")) return new ShardExportSink(new File(output.substring(7)));
+        return null;
+    }
+
+    //Push stored classes into a sink, class by class
+    static void replay(NodesSet[] S, long[] c, ColoringSink sink) throws IOException {
+        long[] node = new long[StreamingColorSplitting.DEFAULT_BATCH];
+        int[] color = new int[node.length];
+        try {
+            sink.begin(S.length, c);
+            for (int q = 0; q < S.length; q++) {
+                Arrays.fill(color, q);
+                for (int i = 0; i < S[q].getSize(); i += node.length) {
+                    int n = Math.min(node.length, S[q].getSize() - i);
+                    for (int k = 0; k < n; k++) node[k] = S[q].getAddNodes()[i + k];
+                    sink.accept(node, color, n);
+                }
+            }
+            sink.end();
+        } catch (Throwable e) {
+            sink.abort();
+            throw e;
+        }
+    }
+
+    static void replay(ColorClass[] S, long[] c, ColoringSink sink) throws IOException {
+        long[] node = new long[StreamingColorSplitting.DEFAULT_BATCH];
+        int[] color = new int[node.length];
+        try {
+            sink.begin(S.length, c);
+            int[] n = new int[1];
+            for (int q = 0; q < S.length; q++) {
+                Arrays.fill(color, q);
+                n[0] = 0;
+                try {
+                    S[q].forEach(v -> {
+                        node[n[0]++] = v;
+                        if (n[0] == node.length) {
+                            accept(sink, node, color, n[0]);
+                            n[0] = 0;
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                if (n[0] > 0) sink.accept(node, color, n[0]);
+            }
+            sink.end();
+        } catch (Throwable e) {
+            sink.abort();
+            throw e;
+        }
+    }
+
+    private static void accept(ColoringSink sink, long[] node, int[] color, int n) {
+        try {
+            sink.accept(node, color, n);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //One digest for all classes
+    static long combine(long[] hashes) {
+        long x = 0;
+        for (long v : hashes) x = x * 31 + v;
+        return x;
+    }
+
+    static String sequence(long[] c) {
+        StringBuilder s = new StringBuilder();
+        for (long x : c) s.append(s.length() == 0 ? "" : " ").append(x);
+        return s.toString();
+    }
+
+    static String csv(List<Run> runs, BatchRunner r) {
+        StringBuilder s = new StringBuilder("h,c,engine,output,trial,wall_ms,export_ms,peak_heap_bytes,gc_count,gc_ms,nodes_per_sec,digest,valid\n");
+        for (Run run : runs) {
+            s.append(run.h).append(",\"").append(sequence(run.c)).append("\",").append(r.engine).append(',').append(r.output)
+                    .append(',').append(run.trial).append(',').append(run.wallNanos / 1000000.0).append(',')
+                    .append(run.exportNanos / 1000000.0).append(',').append(run.peakHeap).append(',').append(run.gcCount)
+                    .append(',').append(run.gcMillis).append(',').append((long) nodesPerSecond(run)).append(',')
+                    .append(run.digest).append(',').append(run.valid).append('\n');
+        }
+        return s.toString();
+    }
+
+    static String json(List<Run> runs, BatchRunner r) {
+        StringBuilder s = new StringBuilder("[\n");
+        for (int i = 0; i < runs.size(); i++) {
+            Run run = runs.get(i);
+            s.append("  {\"h\": ").append(run.h).append(", \"c\": [").append(sequence(run.c).replace(' ', ','))
+                    .append("], \"engine\": \"").append(r.engine).append("\", \"output\": \"").append(r.output)
+                    .append("\", \"trial\": ").append(run.trial).append(", \"wall_ms\": ").append(run.wallNanos / 1000000.0)
+                    .append(", \"export_ms\": ").append(run.exportNanos / 1000000.0).append(", \"peak_heap_bytes\": ")
+                    .append(run.peakHeap).append(", \"gc_count\": ").append(run.gcCount).append(", \"gc_ms\": ")
+                    .append(run.gcMillis).append(", \"nodes_per_sec\": ").append((long) nodesPerSecond(run))
+                    .append(", \"digest\": \"").append(run.digest).append("\", \"valid\": \"").append(run.valid).append("\"}")
+                    .append(i + 1 < runs.size() ? ",\n" : "\n");
+        }
+        return s.append("]\n").toString();
+    }
+
+    static double nodesPerSecond(Run run) {
+        return LongColorSplitting.treeNodes(run.h) * 1e9 / Math.max(1, run.wallNanos);
+    }
+}
+
+
+//-----------------------------------------Feasible Sequences class---------------------------------------------------------------
+//Lazy enumeration and counting of all h-feasible sequences, in the order of ColorSplittingAlgorithm.feasibleConfList.
+//A sequence c = [c1, ..., ch] is built position by position with its prefix sums kept incrementally: given c1..cm with sum S,
+//the next entry ranges over max(cm, (2^(m+2) - 2) - S) .. floor((2^(h+1) - 2 - S) / (h - m)), which keeps (C1), (C2) and the
+//non-decreasing order, so every sequence produced is feasible without calling isFeasible.
+class FeasibleSequences {
+
+    private FeasibleSequences() {
+    }
+
+    //All h-feasible sequences as sorted long arrays, sequential or split across cores
+    public static Stream<long[]> stream(int h, boolean parallel) {
+        return StreamSupport.stream(new SequenceSpliterator(h), parallel);
+    }
+
+    //Number of h-feasible sequences, without enumerating them; null (with a warning) if it does not fit in 127 bits or if the
+    //tables do not fit in the heap. A table has one cell per (S, y), about 4^h / 30 cells at the largest m (9·10^7 for h = 14,
+    //1.6·10^9 for h = 16), and two tables of 16 bytes per cell are alive at once, so the count is practical up to h = 14 or 15
+    //depending on the heap; for larger h the number of sequences has to be estimated or enumerated with a limit.
+    //C(m, S, v) = number of ways to complete a prefix of m entries with sum S and last entry v, and
+    //E(m, S, y) = sum of C(m + 1, S + x, x) over y <= x <= U(S) is tabulated for y from U(S) down, so every entry costs O(1).
+    //For a prefix of m entries, L_m <= S <= m * N / h and max(2, ceil(S / m), L_(m+1) - S) <= y <= U(S) = (N - S) / (h - m).
+    //The counts are kept as unsigned 128-bit numbers in two long tables (hi, lo); the tables of position m + 1 are freed
+    //once those of position m are built.
+    public static BigInteger countFeasible(int h) {
+        if (h < 1 || h > LongColorSplitting.MAX_HEIGHT) return null;
+        long N = LongColorSplitting.treeNodes(h);
+
+        //cells of one table: 16 bytes each, two tables alive, and room for the rest of the heap
+        long budget = Math.min(Integer.MAX_VALUE - 8, Runtime.getRuntime().maxMemory() / 40);
+        for (int m = h - 1; m >= 0; m--) {
+            if (Table.cells(h, m, N, budget) > budget) {
+                System.out.println("Warning! Counting the " + h + "-feasible sequences needs more than " + budget
+                        + " table cells; use a larger heap or a smaller h");
+                return null;
+            }
+        }
+
+        Table next = null;
+        for (int m = h - 1; m >= 0; m--) {
+            Table t = new Table(h, m, N);
+            for (long S = t.sMin; S <= t.sMax; S++) {
+                long hi = 0, lo = 0;
+                for (long y = t.upper(S); y >= t.lower(S); y--) {
+                    //C(m + 1, S + y, y)
+                    long chi, clo;
+                    if (m + 1 == h) {
+                        chi = 0;
+                        clo = S + y == N ? 1 : 0;
+                    }
+                    else {
+                        long S1 = S + y;
+                        long y1 = Math.max(y, (1L << (m + 3)) - 2 - S1);
+                        int k = next.index(S1, y1);
+                        chi = k < 0 ? 0 : next.hi[k];
+                        clo = k < 0 ? 0 : next.lo[k];
+                    }
+                    long sum = lo + clo;
+                    hi += chi + (Long.compareUnsigned(sum, lo) < 0 ? 1 : 0);
+                    lo = sum;
+                    if (hi < 0) {
+                        System.out.println("Warning! The number of " + h + "-feasible sequences does not fit in 127 bits");
+                        return null;
+                    }
+                    int k = t.index(S, y);
+                    t.hi[k] = hi;
+                    t.lo[k] = lo;
+                }
+            }
+            next = t;
+        }
+
+        //c1 >= 2 and L_1 = 2
+        int k = next.index(0, 2);
+        if (k < 0) return BigInteger.ZERO;
+        return BigInteger.valueOf(next.hi[k]).shiftLeft(64).add(new BigInteger(Long.toUnsignedString(next.lo[k])));
+    }
+
+    //E(m, S, y) for one position m, stored row by row (one row per prefix sum S)
+    private static final class Table {
+        final int h, m;
+        final long N, sMin, sMax;
+        final long[] offset;
+        final long[] hi, lo;
+
+        Table(int h, int m, long N) {
+            this.h = h;
+            this.m = m;
+            this.N = N;
+            this.sMin = sMin(m);
+            this.sMax = sMax(h, m, N);
+            this.offset = new long[(int) Math.max(0, sMax - sMin + 2)];
+            for (long S = sMin; S <= sMax; S++) {
+                offset[(int) (S - sMin) + 1] = offset[(int) (S - sMin)] + Math.max(0, upper(S) - lower(S) + 1);
+            }
+            long cells = offset.length == 0 ? 0 : offset[offset.length - 1];
+            this.hi = new long[(int) cells];
+            this.lo = new long[(int) cells];
+        }
+
+        long lower(long S) {
+            return lower(m, S);
+        }
+
+        long upper(long S) {
+            return upper(h, m, N, S);
+        }
+
+        static long sMin(int m) {
+            return m == 0 ? 0 : (1L << (m + 1)) - 2;
+        }
+
+        static long sMax(int h, int m, long N) {
+            return m == 0 ? 0 : m * N / h;
+        }
+
+        static long lower(int m, long S) {
+            long y = Math.max(2, (1L << (m + 2)) - 2 - S);
+            return m == 0 ? y : Math.max(y, (S + m - 1) / m);
+        }
+
+        static long upper(int h, int m, long N, long S) {
+            return (N - S) / (h - m);
+        }
+
+        //Cells of the table of position m without building it; stops at the first count above budget (rows and cells)
+        static long cells(int h, int m, long N, long budget) {
+            long sMin = sMin(m), sMax = sMax(h, m, N);
+            if (sMax - sMin + 2 > budget) return budget + 1;
+            long cells = 0;
+            for (long S = sMin; S <= sMax && cells <= budget; S++) {
+                cells += Math.max(0, upper(h, m, N, S) - lower(m, S) + 1);
+            }
+            return cells;
+        }
+
+        //cell of (S, y), or -1 when it is out of the table (no completion)
+        int index(long S, long y) {
+            if (S < sMin || S > sMax || y > upper(S) || y < lower(S)) return -1;
+            return (int) (offset[(int) (S - sMin)] + y - lower(S));
+        }
+    }
+
+    //Enumerates the completions of a fixed prefix c1..ck whose next entry lies in [first, last]. Before traversal starts it
+    //splits the range of that entry in halves (fixing the prefix further while the range holds a single value).
+    static final class SequenceSpliterator implements Spliterator<long[]> {
+        private final int h;
+        private final long N;
+        private final long[] cur;
+        //sum[m] = c1 + ... + cm
+        private final long[] sum;
+        private int k;
+        private long first, last;
+        private boolean started = false;
+        private int level;
+
+        SequenceSpliterator(int h) {
+            this.h = h;
+            this.N = LongColorSplitting.treeNodes(h);
+            this.cur = new long[h];
+            this.sum = new long[h + 1];
+            this.k = 0;
+            this.first = 2;
+            this.last = N / h;
+        }
+
+        private SequenceSpliterator(SequenceSpliterator s, long first, long last) {
+            this.h = s.h;
+            this.N = s.N;
+            this.cur = s.cur.clone();
+            this.sum = s.sum.clone();
+            this.k = s.k;
+            this.first = first;
+            this.last = last;
+        }
+
+        //Smallest value of entry m that keeps (C1) and the order
+        private long lower(int m) {
+            return m == 0 ? 2 : Math.max(cur[m - 1], (1L << (m + 2)) - 2 - sum[m]);
+        }
+
+        private long upper(int m) {
+            long u = (N - sum[m]) / (h - m);
+            return m == k ? Math.min(u, last) : u;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super long[]> action) {
+            if (!started) {
+                started = true;
+                level = k;
+                cur[k] = first - 1;
+            }
+            else if (level < k) return false;
+
+            while (level >= k) {
+                cur[level]++;
+                if (cur[level] > upper(level)) {
+                    level--;
+                    continue;
+                }
+                sum[level + 1] = sum[level] + cur[level];
+                if (level == h - 1) {
+                    action.accept(cur.clone());
+                    return true;
+                }
+                level++;
+                cur[level] = lower(level) - 1;
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<long[]> trySplit() {
+            if (started) return null;
+            //fix the prefix while the next entry can take a single value only
+            while (first == last && k < h - 1) {
+                cur[k] = first;
+                sum[k + 1] = sum[k] + first;
+                k++;
+                first = lower(k);
+                last = (N - sum[k]) / (h - k);
+            }
+            if (first >= last) return null;
+            long mid = (first + last) >>> 1;
+            SequenceSpliterator prefix = new SequenceSpliterator(this, first, mid);
+            first = mid + 1;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | DISTINCT | NONNULL | IMMUTABLE;
+        }
+    }
+}
+
+
+//-----------------------------------------Verification Harness class-------------------------------------------------------------
+//Parallel version of CSA.testAllCSA: every h-feasible sequence (from FeasibleSequences.stream) is an independent task that colors
+//T(h) with an engine owned by its worker thread and checks the result with LinearCheckCSA (sizes, coverage, Ancestral Property).
+//Pass/fail counts, the first failing sequences and the time per sequence are aggregated across threads.
+//The number of sequences grows quickly (see FeasibleSequences.countFeasible), so a limit can cap the sweep.
+class VerificationHarness {
+
+    static final int MAX_FAILURES = 10;
+    //The engines that keep the coloring in memory; stream, mmap:<dir> and resume:<dir> write files and cannot run per thread
+    static final List<String> ENGINES = Arrays.asList("sequential", "primitive", "template", "parallel", "sorted", "offheap", "colormap",
+            "compressed");
+
+    static final class Summary {
+        final LongAdder tested = new LongAdder();
+        final LongAdder passed = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        final Queue<long[]> failures = new ConcurrentLinkedQueue<>();
+        long wallNanos;
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            long n = tested.sum();
+            s.append("    Sequences tested: ").append(n).append(", passed: ").append(passed.sum())
+                    .append(", failed: ").append(n - passed.sum()).append('\n');
+            s.append("    Wall time in milliseconds: ").append(wallNanos / 1000000).append('\n');
+            s.append("    Time per sequence in microseconds: mean ").append(n == 0 ? 0 : nanos.sum() / n / 1000)
+                    .append(", max ").append(maxNanos.get() / 1000).append('\n');
+            for (long[] c : failures) {
+                s.append("    FAILED: c = ").append(Arrays.toString(c)).append('\n');
+            }
+            return s.toString();
+        }
+    }
+
+    public static boolean supports(String engine) {
+        return ENGINES.contains(engine);
+    }
+
+    //Verify the first limit h-feasible sequences (all of them when limit < 0) with the named engine (one of ENGINES);
+    //null if the engine is not supported
+    public static Summary run(int h, long limit, String engine, ForkJoinPool pool) {
+        if (!supports(engine)) {
+            System.out.println("Warning! The engine " + engine + " cannot be verified; use one of " + String.join(", ", ENGINES));
+            return null;
+        }
+        Summary summary = new Summary();
+        LinearCheckCSA check = new LinearCheckCSA(pool);
+        //every engine created by a worker, shut down after the sweep (parallel owns a ForkJoinPool)
+        Queue<BatchRunner.Engine> created = new ConcurrentLinkedQueue<>();
+        ThreadLocal<BatchRunner.Engine> engines = ThreadLocal.withInitial(() -> {
+            if (!BatchRunner.NODES_SET_ENGINES.contains(engine)) return null;
+            BatchRunner.Engine e = BatchRunner.engine(engine);
+            created.add(e);
+            return e;
+        });
+
+        long start = System.nanoTime();
+        //any limit sequences will do, so the parallel stream does not have to keep them in order
+        Stream<long[]> sequences = FeasibleSequences.stream(h, true);
+        if (limit >= 0) sequences = sequences.unordered().limit(limit);
+        Stream<long[]> all = sequences;
+        try {
+            pool.submit(() -> all.forEach(c -> {
+                long t = System.nanoTime();
+                boolean ok = validate(engine, engines.get(), check, h, c);
+                long dt = System.nanoTime() - t;
+
+                summary.tested.increment();
+                summary.nanos.add(dt);
+                summary.maxNanos.accumulate(dt);
+                if (ok) summary.passed.increment();
+                else if (summary.failures.size() < MAX_FAILURES) summary.failures.add(c);
+            })).join();
+        } finally {
+            for (BatchRunner.Engine e : created) e.shutdown();
+        }
+        summary.wallNanos = System.nanoTime() - start;
+
+        return summary;
+    }
+
+    //Color T(h) with the engine and check the coloring in the layout the engine produces
+    private static boolean validate(String engine, BatchRunner.Engine e, LinearCheckCSA check, int h, long[] c) {
+        if (engine.equals("colormap")) return check.Validate(new ColorMapSplitting().ColorSplitting(h, c, new NodeColorMap(h)), c);
+        if (e != null) return check.Validate(e.apply(h, c), h, c);
+        try {
+            if (engine.equals("compressed")) {
+                return check.Validate(new LongColorSplitting().ColorSplitting(h, c, (q, size) -> new CompressedNodesSet(q)), h, c);
+            }
+            OffHeapNodesSet[] S = new LongColorSplitting().ColorSplitting(h, c);
+            boolean ok = check.Validate(S, h, c);
+            for (OffHeapNodesSet s : S) s.close();
+            return ok;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
+
+
+//-----------------------------------------Coloring Service class-----------------------------------------------------------------
+//A resident process that answers coloring requests, one per line, over stdin/stdout or over TCP connections to localhost:
+//  color c1 c2 ... ch     ->  OK <h> hit|miss <µs>, then the h classes, one line of node IDs each (the lines of Data.SaveTreeTXT)
+//  hash c1 c2 ... ch      ->  OK <digest> hit|miss <µs>    (the digest of BatchRunner --output hash with the primitive engine)
+//  stats                  ->  OK entries=.. bytes=.. hits=.. misses=.. evictions=.. pooled=..
+//  quit                   ->  closes the connection
+//and ERROR <message> for a bad request. µs is the time to get the coloring, without writing it.
+//Colorings are kept in an LRU cache keyed on c (h is its length), evicted when the cache holds more than maxBytes, so a repeated
+//request is a map lookup. A coloring of T(h) always has 2^(h+1) - 2 nodes, stored in one int[] of the class blocks one after
+//another; an evicted array goes to a pool per h and is filled again by the next cold request of that height. Arrays handed out
+//are pinned until released, so eviction never recycles an array that a connection is still writing.
+//Every thread colors with its own Engine (PrimitiveColorSplitting writing into the flat array), so connections run in
+//parallel without sharing scratch state.
+class ColoringService {
+
+    public static final long DEFAULT_CACHE_BYTES = 1L << 30;
+    //Largest tree whose 2^(h+1) - 2 nodes fit in one int[]
+    public static final int MAX_HEIGHT = 29;
+
+    //c-coloring of T(h): class q is nodes[start[q] .. start[q + 1] - 1], in the order of ColorSplittingAlgorithm
+    static final class Coloring {
+        final long[] c;
+        final int[] nodes;
+        final int[] start;
+        long digest;
+        //connections using the coloring, and whether it has left the cache
+        private int users;
+        private boolean evicted;
+
+        Coloring(long[] c, int[] nodes) {
+            this.c = c;
+            this.nodes = nodes;
+            this.start = new int[c.length + 1];
+            for (int q = 0; q < c.length; q++) {
+                start[q + 1] = start[q] + (int) c[q];
+            }
+        }
+
+        long bytes() {
+            return 4L * nodes.length;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<TemplateColorSplitting.SequenceKey, Coloring> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, ArrayDeque<int[]>> pool = new HashMap<>();
+    private final ThreadLocal<Engine> engines = ThreadLocal.withInitial(Engine::new);
+    private long cachedBytes, pooledBytes;
+    private long hits, misses, evictions;
+
+    public ColoringService() {
+        this(DEFAULT_CACHE_BYTES);
+    }
+
+    //maxBytes bounds the cache; the pool holds at most a quarter of it more
+    public ColoringService(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    //The coloring for the sorted feasible sequence c, pinned until release; hit tells if it came from the cache
+    public Coloring acquire(long[] c, boolean[] hit) {
+        TemplateColorSplitting.SequenceKey key = new TemplateColorSplitting.SequenceKey(c.length, c);
+        int[] nodes;
+        synchronized (this) {
+            Coloring x = cache.get(key);
+            if (x != null) {
+                x.users++;
+                hits++;
+                hit[0] = true;
+                return x;
+            }
+            misses++;
+            hit[0] = false;
+            ArrayDeque<int[]> free = pool.get(c.length);
+            nodes = free == null ? null : free.poll();
+            if (nodes != null) pooledBytes -= 4L * nodes.length;
+        }
+
+        //colored outside the lock; the same sequence may be colored twice at once, and the second copy is recycled
+        Coloring x = new Coloring(c.clone(), nodes != null ? nodes : new int[(int) LongColorSplitting.treeNodes(c.length)]);
+        engines.get().color(x);
+
+        synchronized (this) {
+            Coloring cached = cache.get(key);
+            if (cached != null) {
+                recycle(x.nodes);
+                cached.users++;
+                return cached;
+            }
+            x.users = 1;
+            if (x.bytes() > maxBytes) {
+                x.evicted = true;
+                return x;
+            }
+            cache.put(key, x);
+            cachedBytes += x.bytes();
+            Iterator<Coloring> it = cache.values().iterator();
+            while (cachedBytes > maxBytes) {
+                Coloring eldest = it.next();
+                it.remove();
+                cachedBytes -= eldest.bytes();
+                evictions++;
+                eldest.evicted = true;
+                if (eldest.users == 0) recycle(eldest.nodes);
+            }
+            return x;
+        }
+    }
+
+    public synchronized void release(Coloring x) {
+        if (--x.users == 0 && x.evicted) recycle(x.nodes);
+    }
+
+    private void recycle(int[] nodes) {
+        if (pooledBytes + 4L * nodes.length > maxBytes / 4) return;
+        pool.computeIfAbsent(Long.numberOfTrailingZeros(nodes.length + 2L) - 1, k -> new ArrayDeque<>()).push(nodes);
+        pooledBytes += 4L * nodes.length;
+    }
+
+    public synchronized String stats() {
+        return "entries=" + cache.size() + " bytes=" + cachedBytes + " hits=" + hits + " misses=" + misses + " evictions=" + evictions
+                + " pooled=" + pooledBytes;
+    }
+
+    //Answer the requests of one connection until quit or end of input
+    public void serve(InputStream input, OutputStream output) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(input, "US-ASCII"));
+        OutputStream out = new BufferedOutputStream(output, 1 << 16);
+        byte[] digits = new byte[20];
+        boolean[] hit = new boolean[1];
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] tokens = line.trim().split(" +");
+            String command = tokens[0];
+            if (command.equals("quit")) break;
+            if (command.isEmpty()) continue;
+            if (command.equals("stats")) {
+                out.write(("OK " + stats() + "\n").getBytes("US-ASCII"));
+            }
+            else if (command.equals("color") || command.equals("hash")) {
+                long[] c = new long[tokens.length - 1];
+                try {
+                    for (int k = 0; k < c.length; k++) c[k] = Long.parseLong(tokens[k + 1]);
+                } catch (NumberFormatException e) {
+                    c = new long[0];
+                }
+                Arrays.sort(c);
+                if (c.length > MAX_HEIGHT || !LongColorSplitting.isFeasible(c.length, c)) {
+                    out.write(("ERROR c is not a feasible sequence of height at most " + MAX_HEIGHT + "\n").getBytes("US-ASCII"));
+                }
+                else {
+                    long t0 = System.nanoTime();
+                    Coloring x = acquire(c, hit);
+                    long micros = (System.nanoTime() - t0) / 1000;
+                    try {
+                        String status = (hit[0] ? " hit " : " miss ") + micros + "\n";
+                        if (command.equals("hash")) out.write(("OK " + Long.toHexString(x.digest) + status).getBytes("US-ASCII"));
+                        else {
+                            out.write(("OK " + c.length + status).getBytes("US-ASCII"));
+                            write(x, out, digits);
+                        }
+                    } finally {
+                        release(x);
+                    }
+                }
+            }
+            else {
+                out.write(("ERROR unknown command " + command + "\n").getBytes("US-ASCII"));
+            }
+            out.flush();
+        }
+        out.flush();
+    }
+
+    //The classes as lines of decimal IDs, without a String per node
+    private static void write(Coloring x, OutputStream out, byte[] digits) throws IOException {
+        for (int q = 0; q < x.c.length; q++) {
+            for (int i = x.start[q]; i < x.start[q + 1]; i++) {
+                int v = x.nodes[i], n = digits.length;
+                digits[--n] = ' ';
+                do {
+                    digits[--n] = (byte) ('0' + v % 10);
+                    v /= 10;
+                } while (v > 0);
+                out.write(digits, n, digits.length - n);
+            }
+            out.write('\n');
+        }
+    }
+
+    //Accept connections on localhost:port, each served by its own thread
+    public void listen(int port) throws IOException {
+        ExecutorService connections = Executors.newCachedThreadPool();
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("*** Coloring service on " + server.getLocalSocketAddress());
+            while (true) {
+                Socket socket = server.accept();
+                connections.execute(() -> {
+                    try (Socket s = socket) {
+                        serve(s.getInputStream(), s.getOutputStream());
+                    } catch (IOException e) {
+                        System.err.println("Warning! " + e.getMessage());
+                    }
+                });
+            }
+        } finally {
+            connections.shutdown();
+        }
+    }
+
+    //PrimitiveColorSplitting writing class q into the slots start[q] .. of the flat array; its scratch stack is kept between calls
+    static final class Engine {
+        private final PrimitiveColorSplitting splitting = new PrimitiveColorSplitting();
+
+        void color(Coloring x) {
+            int h = x.c.length;
+            ColorClass[] classes = new ColorClass[h];
+            for (int q = 0; q < h; q++) {
+                classes[q] = new Slots(x.nodes, x.start[q]);
+            }
+            splitting.ColorSplitting(h, x.c, classes);
+
+            long[] hashes = new long[h];
+            for (int q = 0; q < h; q++) {
+                hashes[q] = HashingSink.FNV_OFFSET;
+                for (int i = x.start[q]; i < x.start[q + 1]; i++) {
+                    hashes[q] = (hashes[q] ^ x.nodes[i]) * HashingSink.FNV_PRIME;
+                }
+            }
+            x.digest = BatchRunner.combine(hashes);
+        }
+    }
+
+    //One class of the flat array, filled from its first slot on
+    private static final class Slots implements ColorClass {
+        private final int[] nodes;
+        private final int start;
+        private int count;
+
+        Slots(int[] nodes, int start) {
+            this.nodes = nodes;
+            this.start = start;
+        }
+
+        public void addNode(long root) {
+            nodes[start + count++] = (int) root;
+        }
+
+        public long getNode(long index) {
+            return nodes[start + (int) index];
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
+
+
+//-----------------------------------------Merkle Placement class----------------------------------------------------------------
+//Builds the Merkle tree of a file of data blocks on T(h) and stores it the way CSA is meant for: the hash of every node except the
+//root goes to the storage shard of its color, hash<label>.bin, so that a proof (one node per depth) reads one hash per server.
+//Leaf i (node 2^h + i) is SHA-256 of block i, zero-padded to the block size; node R is SHA-256(hash(2R) || hash(2R + 1)).
+//Shard q holds the 32-byte hashes of class q in increasing node-ID order, the order of SortedColorSplitting and of
+//ColorMapSplitting.toNodesSets: depth by depth, so the block of (q, d) starts after the nodes of color q at depths 1 .. d-1.
+//The coloring is kept as a NodeColorMap (one byte per node, memory-mapped in a scratch directory if given). The hashes are never
+//held: level h is hashed from the file, then every level d < h is hashed from the hashes of level d + 1 read back from the shards.
+//A level is cut into CHUNK parents hashed by one fork/join task; the children of a chunk are consecutive nodes of level d + 1, so
+//the children of color q are consecutive in the block (q, d + 1), one positional read per color, and the parents of color q
+//one positional write. The cursors of a chunk in every block come from the color counts of the chunks before it.
+class MerklePlacement {
+
+    public static final int DEFAULT_BLOCK_BYTES = 4096;
+    public static final int HASH_BYTES = 32;
+    public static final String MANIFEST = "merkle.txt";
+    //Parents hashed by one fork/join task
+    static final int CHUNK = 1 << 15;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final ForkJoinPool pool;
+    private final File scratch;
+    private NodeColorMap map;
+    private FileChannel[] shards;
+    //prefix[d][k * h + q]: nodes of color q in the first k chunks of level d
+    private long[][] prefix;
+    //base[d][q]: first hash of depth d in shard q
+    private long[][] base;
+    private int h;
+    private byte[] root;
+
+    public MerklePlacement() {
+        this(ForkJoinPool.commonPool(), null);
+    }
+
+    //scratch: directory of the memory-mapped NodeColorMap, or null to keep it on the heap
+    public MerklePlacement(ForkJoinPool pool, File scratch) {
+        this.pool = pool;
+        this.scratch = scratch;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java MerklePlacement <data file> <shard dir> [block bytes] [c1 ... ch]");
+            return;
+        }
+        File data = new File(args[0]), directory = new File(args[1]);
+        int blockBytes = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_BLOCK_BYTES;
+        long[] c = null;
+        if (args.length > 3) {
+            c = new long[args.length - 3];
+            for (int q = 0; q < c.length; q++) c[q] = Long.parseLong(args[q + 3]);
+            Arrays.sort(c);
+        }
+        new MerklePlacement().build(data, blockBytes, c, directory);
+    }
+
+    //Height of the tree over the blocks of a file: the smallest h >= 1 with 2^h leaves
+    public static int height(long bytes, int blockBytes) {
+        long blocks = Math.max(1, (bytes + blockBytes - 1) / blockBytes);
+        return Math.max(1, 64 - Long.numberOfLeadingZeros(blocks - 1));
+    }
+
+    //Writes hash<label>.bin for every color of c (the balanced sequence when c is null) and merkle.txt; returns the root hash,
+    //or null if c is not a feasible sequence for the height of the file
+    public byte[] build(File data, int blockBytes, long[] c, File directory) throws IOException {
+        long t0 = System.nanoTime();
+        long dataBytes = data.length();
+        h = height(dataBytes, blockBytes);
+        if (c == null) c = LongColorSplitting.balancedColorSequence(h);
+        if (h > LongColorSplitting.MAX_HEIGHT - 1 || !LongColorSplitting.isFeasible(h, c)) {
+            System.out.println("Warning! c should be a feasible sequence of length " + h + " for " + data);
+            return null;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory);
+
+        File mapFile = scratch == null ? null : File.createTempFile("colormap", ".bin", scratch);
+        map = mapFile == null ? new NodeColorMap(h) : new NodeColorMap(h, 8, mapFile);
+        shards = new FileChannel[h];
+        try (FileChannel in = new RandomAccessFile(data, "r").getChannel()) {
+            new ColorMapSplitting().ColorSplitting(h, c, map);
+            count();
+            for (int q = 0; q < h; q++) {
+                File file = new File(directory, "hash" + LongColorSplitting.colorLabel(q) + ".bin");
+                shards[q] = new RandomAccessFile(file, "rw").getChannel();
+                shards[q].truncate(c[q] * HASH_BYTES);
+            }
+            long t1 = System.nanoTime();
+
+            LinearCheckCSA.forRange(pool, chunks(h), 1, (from, to) -> {
+                for (long k = from; k < to; k++) hashLeaves(in, blockBytes, dataBytes, k);
+                return true;
+            });
+            long t2 = System.nanoTime();
+            for (int d = h - 1; d >= 1; d--) {
+                int depth = d;
+                LinearCheckCSA.forRange(pool, chunks(d), 1, (from, to) -> {
+                    for (long k = from; k < to; k++) hashParents(depth, k);
+                    return true;
+                });
+            }
+            hashParents(0, 0);
+            long t3 = System.nanoTime();
+
+            try (PrintWriter w = new PrintWriter(new FileWriter(new File(directory, MANIFEST), false))) {
+                w.println("h " + h);
+                w.println("block " + blockBytes);
+                w.println("c " + BatchRunner.sequence(c));
+                w.println("root " + hex(root));
+            }
+            System.out.printf("*** Merkle tree of %s: h = %d, root %s%n", data, h, hex(root));
+            System.out.printf("    coloring %.1f ms, leaves %.1f ms (%.3f GB/s), inner levels %.1f ms, total %.3f GB/s of leaf data%n",
+                    (t1 - t0) / 1e6, (t2 - t1) / 1e6, dataBytes / (double) (t2 - t1), (t3 - t2) / 1e6,
+                    dataBytes / (double) (System.nanoTime() - t0));
+            return root.clone();
+        } finally {
+            for (FileChannel shard : shards) {
+                if (shard != null) shard.close();
+            }
+            map.close();
+            if (mapFile != null && !mapFile.delete()) mapFile.deleteOnExit();
+        }
+    }
+
+    private static long chunks(int d) {
+        return ((1L << d) + CHUNK - 1) / CHUNK;
+    }
+
+    //Color counts of every chunk of every level, then the start of every (color, depth) block
+    private void count() {
+        prefix = new long[h + 1][];
+        base = new long[h + 1][h];
+        for (int d = 1; d <= h; d++) {
+            int depth = d;
+            long n = chunks(d);
+            long[] p = prefix[d] = new long[(int) (n + 1) * h];
+            LinearCheckCSA.forRange(pool, n, 1, (from, to) -> {
+                for (long k = from; k < to; k++) {
+                    long first = (1L << depth) + k * CHUNK, last = Math.min(first + CHUNK, 1L << (depth + 1));
+                    for (long node = first; node < last; node++) {
+                        p[(int) (k + 1) * h + map.get(node)]++;
+                    }
+                }
+                return true;
+            });
+            for (int k = 1; k <= n; k++) {
+                for (int q = 0; q < h; q++) p[k * h + q] += p[(k - 1) * h + q];
+            }
+            if (d < h) {
+                for (int q = 0; q < h; q++) base[d + 1][q] = base[d][q] + p[(int) n * h + q];
+            }
+        }
+    }
+
+    //Leaves of chunk k: hash the blocks, then write the hashes of each color at its cursor in the depth-h block
+    private void hashLeaves(FileChannel in, int blockBytes, long dataBytes, long k) {
+        MessageDigest sha = SHA256.get();
+        long first = k * CHUNK, last = Math.min(first + CHUNK, 1L << h);
+        ByteBuffer[] out = outputs(h, k);
+        ByteBuffer block = ByteBuffer.allocate(blockBytes);
+        try {
+            for (long i = first; i < last; i++) {
+                block.clear();
+                long position = i * blockBytes;
+                while (block.hasRemaining() && position + block.position() < dataBytes) {
+                    if (in.read(block, position + block.position()) < 0) break;
+                }
+                Arrays.fill(block.array(), block.position(), blockBytes, (byte) 0);
+                sha.update(block.array());
+                digest(sha, out[map.get((1L << h) + i)]);
+            }
+            write(h, k, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //Parents of chunk k of level d (d >= 1), or the root when d = 0
+    private void hashParents(int d, long k) {
+        MessageDigest sha = SHA256.get();
+        long first = (1L << d) + k * CHUNK, last = Math.min(first + CHUNK, 1L << (d + 1));
+        //children 2·first .. 2·last - 1 start at the cursors of child chunk 2k (k = 0 when level d is a single short chunk)
+        long[] p = prefix[d + 1];
+        int childChunk = (int) (2 * k);
+        long[] counts = new long[h];
+        for (long node = 2 * first; node < 2 * last; node++) {
+            counts[map.get(node)]++;
+        }
+        try {
+            ByteBuffer[] children = new ByteBuffer[h];
+            for (int q = 0; q < h; q++) {
+                children[q] = ByteBuffer.allocate((int) counts[q] * HASH_BYTES);
+                long position = (base[d + 1][q] + p[childChunk * h + q]) * HASH_BYTES;
+                while (children[q].hasRemaining()) {
+                    if (shards[q].read(children[q], position + children[q].position()) < 0) throw new IOException("Short shard " + q);
+                }
+                children[q].flip();
+            }
+            ByteBuffer[] out = d > 0 ? outputs(d, k) : null;
+            byte[] pair = new byte[2 * HASH_BYTES];
+            for (long node = first; node < last; node++) {
+                children[map.get(2 * node)].get(pair, 0, HASH_BYTES);
+                children[map.get(2 * node + 1)].get(pair, HASH_BYTES, HASH_BYTES);
+                sha.update(pair);
+                if (d == 0) root = sha.digest();
+                else digest(sha, out[map.get(node)]);
+            }
+            if (d > 0) write(d, k, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //One buffer per color for the hashes of chunk k of level d
+    private ByteBuffer[] outputs(int d, long k) {
+        long[] p = prefix[d];
+        ByteBuffer[] out = new ByteBuffer[h];
+        for (int q = 0; q < h; q++) {
+            out[q] = ByteBuffer.allocate((int) (p[(int) (k + 1) * h + q] - p[(int) k * h + q]) * HASH_BYTES);
+        }
+        return out;
+    }
+
+    private void write(int d, long k, ByteBuffer[] out) throws IOException {
+        for (int q = 0; q < h; q++) {
+            out[q].flip();
+            long position = (base[d][q] + prefix[d][(int) k * h + q]) * HASH_BYTES;
+            while (out[q].hasRemaining()) {
+                position += shards[q].write(out[q], position);
+            }
+        }
+    }
+
+    private static void digest(MessageDigest sha, ByteBuffer out) {
+        try {
+            sha.digest(out.array(), out.position(), HASH_BYTES);
+            out.position(out.position() + HASH_BYTES);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] hash) {
+        StringBuilder s = new StringBuilder();
+        for (byte b : hash) s.append(String.format("%02x", b));
+        return s.toString();
     }
 }